@@ -37,6 +37,7 @@ import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -82,6 +83,7 @@ import com.android.settings.bliss.AppCircleBar;
 import com.android.settings.bliss.HeadsUpSettings;
 import com.android.settings.bliss.NavBar;
 import com.android.settings.bluetooth.BluetoothSettings;
+import com.android.settings.dashboard.DashboardCategoriesCache;
 import com.android.settings.dashboard.DashboardCategory;
 import com.android.settings.dashboard.DashboardSummary;
 import com.android.settings.dashboard.DashboardTile;
@@ -133,6 +135,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -339,7 +342,7 @@ public class SettingsActivity extends Activity
     private SharedPreferences mDevelopmentPreferences;
     private SharedPreferences.OnSharedPreferenceChangeListener mDevelopmentPreferencesListener;
 
-    private boolean mBatteryPresent = true;
+    private volatile boolean mBatteryPresent = true;
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -379,6 +382,10 @@ public class SettingsActivity extends Activity
 
     // Categories
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
+    // mCategories as marshalled by DashboardCategoriesCache, to find out if a build changed them
+    private byte[] mCategoriesData;
+    private BuildCategoriesTask mBuildCategoriesTask;
+    private boolean mNeedToRebuildCategories;
 
     private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
     private static final int MSG_BUILD_CATEGORIES = 1;
@@ -389,7 +396,7 @@ public class SettingsActivity extends Activity
                 case MSG_BUILD_CATEGORIES: {
                     final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
                     if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
+                        buildDashboardCategoriesAsync();
                     }
                 } break;
             }
@@ -399,15 +406,36 @@ public class SettingsActivity extends Activity
     private boolean mNeedToRevertToInitialFragment = false;
     private int mHomeActivitiesCount = 1;
 
+    // Set by BuildCategoriesTask, the notice is shown by the UI thread while resumed
+    private volatile boolean mNoHomeNoticePending;
+    private boolean mResumed;
+
     private Intent mResultIntentData;
 
     public SwitchBar getSwitchBar() {
         return mSwitchBar;
     }
 
+    /**
+     * Return the dashboard categories without waiting for them to be built: these are the
+     * categories already built, or the ones saved by a previous start of Settings.
+     *
+     * @param forceRefresh true to build the categories again in the background. They are also
+     *                     built if there are none yet. {@link DashboardSummary} is told when
+     *                     the new categories are different.
+     */
     public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
+        if (mCategories.size() == 0) {
+            final byte[] data = DashboardCategoriesCache.read(this);
+            final List<DashboardCategory> categories = (data != null)
+                    ? DashboardCategoriesCache.unmarshall(data) : null;
+            if (categories != null) {
+                mCategories.addAll(categories);
+                mCategoriesData = data;
+            }
+        }
         if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+            buildDashboardCategoriesAsync();
         }
         return mCategories;
     }
@@ -441,6 +469,7 @@ public class SettingsActivity extends Activity
             Message msg = new Message();
             msg.what = MSG_BUILD_CATEGORIES;
             msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+            mHandler.sendMessage(msg);
         }
     }
 
@@ -512,6 +541,7 @@ public class SettingsActivity extends Activity
 
     @Override
     protected void onCreate(Bundle savedState) {
+        final long traceStart = StartupTrace.begin(StartupTrace.SECTION_ACTIVITY_CREATE);
         super.onCreate(savedState);
 
         // Should happen before any call to getIntent()
@@ -576,6 +606,7 @@ public class SettingsActivity extends Activity
             if (categories != null) {
                 mCategories.clear();
                 mCategories.addAll(categories);
+                mCategoriesData = DashboardCategoriesCache.marshall(mCategories);
                 setTitleFromBackStack();
             }
 
@@ -675,6 +706,8 @@ public class SettingsActivity extends Activity
         }
 
         mHomeActivitiesCount = getHomeActivitiesCount();
+
+        StartupTrace.end(StartupTrace.SECTION_ACTIVITY_CREATE, traceStart);
     }
 
     private int getHomeActivitiesCount() {
@@ -763,6 +796,8 @@ public class SettingsActivity extends Activity
     @Override
     public void onResume() {
         super.onResume();
+        mResumed = true;
+        showNoHomeNoticeIfPending();
 
         final int newHomeActivityCount = getHomeActivitiesCount();
         if (newHomeActivityCount != mHomeActivitiesCount) {
@@ -791,6 +826,7 @@ public class SettingsActivity extends Activity
     @Override
     public void onPause() {
         super.onPause();
+        mResumed = false;
 
         unregisterReceiver(mBatteryInfoReceiver);
         mDynamicIndexableContentMonitor.unregister();
@@ -979,14 +1015,96 @@ public class SettingsActivity extends Activity
     }
 
     /**
-     * Called when the activity needs its list of categories/tiles built.
+     * Show the notice found by the last BuildCategoriesTask. Only done while resumed, as the
+     * dialog cannot be shown once the state has been saved: it waits for the next onResume().
+     */
+    private void showNoHomeNoticeIfPending() {
+        if (mResumed && mNoHomeNoticePending) {
+            mNoHomeNoticePending = false;
+            NoHomeDialogFragment.show(this);
+        }
+    }
+
+    private void buildDashboardCategoriesAsync() {
+        if (mBuildCategoriesTask != null) {
+            mNeedToRebuildCategories = true;
+            return;
+        }
+        // The count is written by the UI thread only, the task gets a copy of it
+        mHomeActivitiesCount = getHomeActivitiesCount();
+        mBuildCategoriesTask = new BuildCategoriesTask(mCategoriesData, mHomeActivitiesCount);
+        mBuildCategoriesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Build the categories off the UI thread, as checking the tiles needs many calls to the
+     * package manager. New categories are saved for the next cold start and replace the
+     * current ones only if they are different.
+     */
+    private class BuildCategoriesTask extends AsyncTask<Void, Void, List<DashboardCategory>> {
+        private final byte[] mPreviousData;
+        private final int mHomeActivitiesCount;
+        private byte[] mData;
+
+        public BuildCategoriesTask(byte[] previousData, int homeActivitiesCount) {
+            mPreviousData = previousData;
+            mHomeActivitiesCount = homeActivitiesCount;
+        }
+
+        @Override
+        protected List<DashboardCategory> doInBackground(Void... params) {
+            final long start = System.currentTimeMillis();
+            final List<DashboardCategory> categories = new ArrayList<DashboardCategory>();
+            buildDashboardCategories(categories, mHomeActivitiesCount);
+
+            mData = DashboardCategoriesCache.marshall(categories);
+            final boolean changed = !Arrays.equals(mData, mPreviousData);
+            if (changed) {
+                DashboardCategoriesCache.write(SettingsActivity.this, mData);
+            }
+            Log.d(LOG_TAG, "buildDashboardCategories took: " +
+                    (System.currentTimeMillis() - start) + " ms, changed: " + changed);
+            return changed ? categories : null;
+        }
+
+        @Override
+        protected void onPostExecute(List<DashboardCategory> categories) {
+            mBuildCategoriesTask = null;
+            if (isDestroyed()) {
+                return;
+            }
+            showNoHomeNoticeIfPending();
+            if (categories != null) {
+                mCategories.clear();
+                mCategories.addAll(categories);
+                mCategoriesData = mData;
+
+                final Fragment current = getFragmentManager().findFragmentById(R.id.main_content);
+                if (current instanceof DashboardSummary) {
+                    ((DashboardSummary) current).onCategoriesChanged();
+                }
+            }
+            if (mNeedToRebuildCategories) {
+                mNeedToRebuildCategories = false;
+                buildDashboardCategoriesAsync();
+            }
+        }
+    }
+
+    /**
+     * Called when the activity needs its list of categories/tiles built. This is called from
+     * a background thread.
      *
      * @param categories The list in which to place the tiles categories.
+     * @param homeActivitiesCount The number of home activities, read on the UI thread.
      */
-    private void buildDashboardCategories(List<DashboardCategory> categories) {
+    private void buildDashboardCategories(List<DashboardCategory> categories,
+            int homeActivitiesCount) {
+        final long traceStart = StartupTrace.begin(StartupTrace.SECTION_BUILD_CATEGORIES);
         categories.clear();
         loadCategoriesFromResource(R.xml.dashboard_categories, categories);
-        updateTilesList(categories);
+        updateTilesList(categories, homeActivitiesCount);
+        StartupTrace.end(StartupTrace.SECTION_BUILD_CATEGORIES, traceStart);
     }
 
     /**
@@ -1153,7 +1271,7 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private void updateTilesList(List<DashboardCategory> target) {
+    private void updateTilesList(List<DashboardCategory> target, int homeActivitiesCount) {
         final boolean showDev = mDevelopmentPreferences.getBoolean(
                 DevelopmentSettings.PREF_SHOW,
                 android.os.Build.TYPE.equals("eng") || android.os.Build.TYPE.equals("userdebug"));
@@ -1218,7 +1336,7 @@ public class SettingsActivity extends Activity
                         removeTile = true;
                     }
                 } else if (id == R.id.home_settings) {
-                    if (!updateHomeSettingTiles(tile)) {
+                    if (!updateHomeSettingTiles(tile, homeActivitiesCount)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.user_settings) {
@@ -1291,7 +1409,7 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private boolean updateHomeSettingTiles(DashboardTile tile) {
+    private boolean updateHomeSettingTiles(DashboardTile tile, int homeActivitiesCount) {
         // Once we decide to show Home settings, keep showing it forever
         SharedPreferences sp = getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
         if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
@@ -1299,15 +1417,15 @@ public class SettingsActivity extends Activity
         }
 
         try {
-            mHomeActivitiesCount = getHomeActivitiesCount();
-            if (mHomeActivitiesCount < 2) {
+            if (homeActivitiesCount < 2) {
                 // When there's only one available home app, omit this settings
                 // category entirely at the top level UI.  If the user just
                 // uninstalled the penultimate home app candidiate, we also
                 // now tell them about why they aren't seeing 'Home' in the list.
                 if (sShowNoHomeNotice) {
                     sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
+                    // The tiles are built in the background, the dialog cannot be shown here
+                    mNoHomeNoticePending = true;
                 }
                 return false;
             } else {
@@ -29,6 +29,7 @@ import android.content.res.XmlResourceParser;
 import android.database.DataSetObserver;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
@@ -102,8 +103,12 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
 
     private ViewGroup mPinnedHeaderFrameLayout;
 
+    // Start of onCreate(), the fragment creation is recorded once its activity is created
+    private long mCreateTraceStart;
+
     @Override
     public void onCreate(Bundle icicle) {
+        mCreateTraceStart = SystemClock.elapsedRealtimeNanos();
         super.onCreate(icicle);
 		
 	mContext = getActivity().getApplicationContext();
@@ -302,6 +307,10 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
         if (!TextUtils.isEmpty(mHelpUrl)) {
             setHasOptionsMenu(true);
         }
+        if (mCreateTraceStart != 0) {
+            StartupTrace.record(StartupTrace.SECTION_FRAGMENT_CREATE, mCreateTraceStart);
+            mCreateTraceStart = 0;
+        }
     }
 
     @Override
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Named sections of the Settings startup. Each section shows up in systrace and its last
+ * durations are kept in memory, so that the launch performance tests can report percentiles.
+ *
+ * Usage:
+ *
+ * final long start = StartupTrace.begin(StartupTrace.SECTION_ACTIVITY_CREATE);
+ * ...
+ * StartupTrace.end(StartupTrace.SECTION_ACTIVITY_CREATE, start);
+ */
+public final class StartupTrace {
+
+    public static final String SECTION_ACTIVITY_CREATE = "SettingsActivity.onCreate";
+    public static final String SECTION_BUILD_CATEGORIES =
+            "SettingsActivity.buildDashboardCategories";
+    public static final String SECTION_DASHBOARD_REBUILD_UI = "DashboardSummary.rebuildUI";
+    public static final String SECTION_FRAGMENT_CREATE = "SettingsPreferenceFragment.create";
+
+    // Number of durations kept per section, the oldest ones are dropped first
+    private static final int MAX_SAMPLES = 256;
+
+    private static final HashMap<String, Samples> sSections = new HashMap<String, Samples>();
+
+    private static final class Samples {
+        final long[] durations = new long[MAX_SAMPLES];
+        int count;
+        int next;
+
+        void add(long duration) {
+            durations[next] = duration;
+            next = (next + 1) % MAX_SAMPLES;
+            if (count < MAX_SAMPLES) {
+                count++;
+            }
+        }
+    }
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Begin a section. Sections begun with this method must be ended on the same thread, in
+     * the reverse order they were begun.
+     *
+     * @return the start time to give to {@link #end(String, long)}.
+     */
+    public static long begin(String section) {
+        Trace.beginSection(section);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * End a section begun with {@link #begin(String)}.
+     */
+    public static void end(String section, long startNanos) {
+        Trace.endSection();
+        record(section, startNanos);
+    }
+
+    /**
+     * Record the duration of a section spanning several callbacks, that cannot be shown in
+     * systrace.
+     *
+     * @param startNanos the {@link SystemClock#elapsedRealtimeNanos()} at the section start.
+     */
+    public static void record(String section, long startNanos) {
+        final long duration = SystemClock.elapsedRealtimeNanos() - startNanos;
+        synchronized (sSections) {
+            Samples samples = sSections.get(section);
+            if (samples == null) {
+                samples = new Samples();
+                sSections.put(section, samples);
+            }
+            samples.add(duration);
+        }
+    }
+
+    /**
+     * @return the names of the sections recorded so far.
+     */
+    public static List<String> getSections() {
+        synchronized (sSections) {
+            return new ArrayList<String>(sSections.keySet());
+        }
+    }
+
+    /**
+     * @return the number of durations kept for a section.
+     */
+    public static int getCount(String section) {
+        synchronized (sSections) {
+            final Samples samples = sSections.get(section);
+            return (samples != null) ? samples.count : 0;
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the percentile of the durations kept for a section in nanoseconds, or -1 if the
+     *         section has not been recorded.
+     */
+    public static long getPercentile(String section, int percentile) {
+        final long[] durations;
+        synchronized (sSections) {
+            final Samples samples = sSections.get(section);
+            if (samples == null || samples.count == 0) {
+                return -1;
+            }
+            durations = Arrays.copyOf(samples.durations, samples.count);
+        }
+        Arrays.sort(durations);
+        final int index = (int) Math.ceil(percentile / 100.0 * durations.length) - 1;
+        return durations[Math.max(0, Math.min(durations.length - 1, index))];
+    }
+
+    /**
+     * Forget the durations recorded so far.
+     */
+    public static void reset() {
+        synchronized (sSections) {
+            sSections.clear();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk cache of the labels, icons and sizes of the {@link ApplicationsState.AppEntry}s, so
+ * that a cold process can show the application lists fully populated while the real values
+ * are loaded again in the background.
+ *
+ * An entry is only used for the same apk: same path and same modification time, which both
+ * change when the package is updated. The whole cache is only used for the locale, the
+ * density and the theme it has been saved with, since a theme can change the icons and labels
+ * without changing the apk.
+ */
+class AppEntryCache {
+    private static final String TAG = "AppEntryCache";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_entries";
+
+    // Increase when the format of the file changes
+    private static final int VERSION = 1;
+
+    static final class Record {
+        String apkPath;
+        long apkModified;
+        String label;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        // Downscaled icon as a PNG, or null
+        byte[] icon;
+    }
+
+    private final Context mContext;
+    private final int mIconSize;
+
+    // Only touched by the ApplicationsState background thread, except for get()
+    private HashMap<String, Record> mRecords;
+    private volatile boolean mLoaded;
+    private volatile boolean mDirty;
+
+    AppEntryCache(Context context) {
+        mContext = context;
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Load the cache if it has not been loaded yet.
+     */
+    void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final HashMap<String, Record> records = read();
+        synchronized (this) {
+            mRecords = records;
+        }
+        mLoaded = true;
+        if (DEBUG) Log.d(TAG, "Loaded " + records.size() + " entries in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @return the record of a package if it has been saved for the same apk, or null. Never
+     *         waits for the cache to be loaded.
+     */
+    Record get(String packageName, File apkFile) {
+        if (!mLoaded) {
+            return null;
+        }
+        final Record record;
+        synchronized (this) {
+            record = mRecords.get(packageName);
+        }
+        if (record == null || !record.apkPath.equals(apkFile.getPath())
+                || record.apkModified != apkFile.lastModified()) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Create a drawable from the icon of a record.
+     */
+    Drawable getIcon(Record record) {
+        if (record.icon == null) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(record.icon, 0, record.icon.length);
+        return (bitmap != null) ? new BitmapDrawable(mContext.getResources(), bitmap) : null;
+    }
+
+    /**
+     * Mark the cache as needing to be saved again.
+     */
+    void invalidate() {
+        mDirty = true;
+    }
+
+    /**
+     * Save the entries if something changed since the cache was loaded or saved. Icons
+     * already saved for the same apk are not encoded again.
+     */
+    void save(List<ApplicationsState.AppEntry> entries) {
+        if (!mLoaded || !mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        final long start = System.currentTimeMillis();
+        final HashMap<String, Record> records = new HashMap<String, Record>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            final ApplicationsState.AppEntry entry = entries.get(i);
+            final Record record;
+            synchronized (entry) {
+                if (!entry.mounted || entry.label == null) {
+                    continue;
+                }
+                final String packageName = entry.info.packageName;
+                final Record previous = get(packageName, entry.apkFile);
+
+                record = new Record();
+                record.apkPath = entry.apkFile.getPath();
+                record.apkModified = entry.apkFile.lastModified();
+                record.label = entry.label;
+                record.size = entry.size;
+                record.internalSize = entry.internalSize;
+                record.externalSize = entry.externalSize;
+                record.cacheSize = entry.cacheSize;
+                record.codeSize = entry.codeSize;
+                record.dataSize = entry.dataSize;
+                record.externalCodeSize = entry.externalCodeSize;
+                record.externalDataSize = entry.externalDataSize;
+                record.externalCacheSize = entry.externalCacheSize;
+                record.icon = (previous != null && previous.icon != null) ? previous.icon
+                        : encodeIcon(entry.icon);
+                records.put(packageName, record);
+            }
+        }
+        synchronized (this) {
+            mRecords = records;
+        }
+        write(records);
+        if (DEBUG) Log.d(TAG, "Saved " + records.size() + " entries in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private byte[] encodeIcon(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final Bitmap bitmap;
+        if (icon instanceof BitmapDrawable) {
+            bitmap = Bitmap.createScaledBitmap(((BitmapDrawable) icon).getBitmap(), mIconSize,
+                    mIconSize, true);
+        } else {
+            // Do not change the bounds of a drawable that may be showing
+            final Drawable.ConstantState state = icon.getConstantState();
+            if (state == null) {
+                return null;
+            }
+            final Drawable copy = state.newDrawable(mContext.getResources());
+            bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+            copy.setBounds(0, 0, mIconSize, mIconSize);
+            copy.draw(new Canvas(bitmap));
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(new File(mContext.getCacheDir(), FILE_NAME));
+    }
+
+    private String getConfigKey() {
+        final Resources res = mContext.getResources();
+        final Configuration config = res.getConfiguration();
+        return config.locale + "/" + res.getDisplayMetrics().densityDpi + "/"
+                + config.themeConfig;
+    }
+
+    private HashMap<String, Record> read() {
+        final HashMap<String, Record> records = new HashMap<String, Record>();
+        final AtomicFile file = getFile();
+        if (!file.getBaseFile().exists()) {
+            return records;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != VERSION || !getConfigKey().equals(in.readUTF())) {
+                return records;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String packageName = in.readUTF();
+                final Record record = new Record();
+                record.apkPath = in.readUTF();
+                record.apkModified = in.readLong();
+                record.label = in.readUTF();
+                record.size = in.readLong();
+                record.internalSize = in.readLong();
+                record.externalSize = in.readLong();
+                record.cacheSize = in.readLong();
+                record.codeSize = in.readLong();
+                record.dataSize = in.readLong();
+                record.externalCodeSize = in.readLong();
+                record.externalDataSize = in.readLong();
+                record.externalCacheSize = in.readLong();
+                final int iconLength = in.readInt();
+                if (iconLength > 0) {
+                    record.icon = new byte[iconLength];
+                    in.readFully(record.icon);
+                }
+                records.put(packageName, record);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the app entries", e);
+            records.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return records;
+    }
+
+    private void write(HashMap<String, Record> records) {
+        final AtomicFile file = getFile();
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            dataOut.writeInt(VERSION);
+            dataOut.writeUTF(getConfigKey());
+            dataOut.writeInt(records.size());
+            for (HashMap.Entry<String, Record> entry : records.entrySet()) {
+                final Record record = entry.getValue();
+                dataOut.writeUTF(entry.getKey());
+                dataOut.writeUTF(record.apkPath);
+                dataOut.writeLong(record.apkModified);
+                dataOut.writeUTF(record.label);
+                dataOut.writeLong(record.size);
+                dataOut.writeLong(record.internalSize);
+                dataOut.writeLong(record.externalSize);
+                dataOut.writeLong(record.cacheSize);
+                dataOut.writeLong(record.codeSize);
+                dataOut.writeLong(record.dataSize);
+                dataOut.writeLong(record.externalCodeSize);
+                dataOut.writeLong(record.externalDataSize);
+                dataOut.writeLong(record.externalCacheSize);
+                if (record.icon != null) {
+                    dataOut.writeInt(record.icon.length);
+                    dataOut.write(record.icon);
+                } else {
+                    dataOut.writeInt(0);
+                }
+            }
+            dataOut.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save the app entries", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+}
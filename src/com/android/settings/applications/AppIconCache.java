@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Icons of the applications shared by all the Settings screens, so that an icon is only
+ * loaded once per process.
+ *
+ * The icons are kept in a LRU bounded by the size of their bitmaps and keyed by package,
+ * user, density and theme. They are loaded either synchronously on a background thread with
+ * {@link #loadIcon(ApplicationInfo)}, or asynchronously by a small pool of threads with
+ * {@link #requestIcon(ApplicationInfo, Callback)}. The last requests are loaded first: they
+ * come from the rows that have just been shown.
+ *
+ * The cache lives as long as the process, so it listens to the package broadcasts itself to
+ * forget the icons of the packages updated, changed or removed, and drops all the icons when
+ * the configuration changes (a theme or an icon pack may have been applied).
+ */
+public final class AppIconCache {
+    private static final String TAG = "AppIconCache";
+
+    private static final int LOADER_THREADS = 2;
+
+    // Part of the memory class of the process used by the icons
+    private static final int MEMORY_CLASS_FRACTION = 16;
+
+    public interface Callback {
+        /**
+         * Called on the main thread when an icon requested with
+         * {@link AppIconCache#requestIcon} has been loaded.
+         *
+         * @param icon the icon, or null if the package does not exist anymore. The callback is
+         *        not called again for that package until it is added back.
+         */
+        void onIconLoaded(String packageName, Drawable icon);
+    }
+
+    private static AppIconCache sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    private final LruCache<String, Drawable> mIcons;
+
+    // Callbacks of the requests not loaded yet, by key. Synchronized on itself.
+    private final HashMap<String, ArrayList<Callback>> mPendingRequests =
+            new HashMap<String, ArrayList<Callback>>();
+
+    // Keys of the packages that could not be found, until the next package broadcast for them.
+    // Synchronized on mPendingRequests.
+    private final HashSet<String> mMissingPackages = new HashSet<String>();
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (AppIconCache.class) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppIconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        mIcons = new LruCache<String, Drawable>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Drawable icon) {
+                return getByteCount(icon);
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 1, TimeUnit.SECONDS,
+                new LifoBlockingDeque(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("AppIconLoader #" + mCount.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter(
+                Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+        context.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    private final ComponentCallbacks mComponentCallbacks = new ComponentCallbacks() {
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // The icons of the old configuration cannot be requested anymore
+            mIcons.evictAll();
+        }
+
+        @Override
+        public void onLowMemory() {
+            mIcons.evictAll();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+            } else if (intent.getData() != null) {
+                invalidate(intent.getData().getEncodedSchemeSpecificPart());
+            }
+        }
+    };
+
+    /**
+     * @return the icon of an application if it has already been loaded, or null. Never loads
+     *         the icon.
+     */
+    public Drawable getCachedIcon(ApplicationInfo info) {
+        return copy(mIcons.get(getKey(info.packageName, UserHandle.getUserId(info.uid))));
+    }
+
+    /**
+     * @return the icon of a package of the current user if it has already been loaded, or
+     *         null. Never loads the icon.
+     */
+    public Drawable getCachedIcon(String packageName) {
+        return copy(mIcons.get(getKey(packageName, UserHandle.myUserId())));
+    }
+
+    /**
+     * Load the icon of an application, or return it from the cache. Must not be called on the
+     * main thread.
+     */
+    public Drawable loadIcon(ApplicationInfo info) {
+        final String key = getKey(info.packageName, UserHandle.getUserId(info.uid));
+        Drawable icon = mIcons.get(key);
+        if (icon == null) {
+            icon = info.loadIcon(mPm);
+            mIcons.put(key, icon);
+        }
+        return copy(icon);
+    }
+
+    /**
+     * Load the icon of an application on the loader threads, unless it is already cached.
+     * The callback is called on the main thread, immediately if the icon is cached.
+     */
+    public void requestIcon(final ApplicationInfo info, Callback callback) {
+        final String key = getKey(info.packageName, UserHandle.getUserId(info.uid));
+        request(key, info.packageName, callback, new Runnable() {
+            @Override
+            public void run() {
+                deliver(key, info.packageName, loadIcon(info));
+            }
+        });
+    }
+
+    /**
+     * Load the icon of a package of the current user on the loader threads, unless it is
+     * already cached. The callback is called on the main thread, immediately if the icon is
+     * cached.
+     */
+    public void requestIcon(final String packageName, Callback callback) {
+        final String key = getKey(packageName, UserHandle.myUserId());
+        request(key, packageName, callback, new Runnable() {
+            @Override
+            public void run() {
+                Drawable icon = null;
+                try {
+                    icon = loadIcon(mPm.getApplicationInfo(packageName, 0));
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Cannot load the icon of " + packageName);
+                    synchronized (mPendingRequests) {
+                        mMissingPackages.add(key);
+                    }
+                }
+                deliver(key, packageName, icon);
+            }
+        });
+    }
+
+    /**
+     * Forget the icons of a package, after it has been updated or removed.
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + "/";
+        for (String key : mIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mIcons.remove(key);
+            }
+        }
+        synchronized (mPendingRequests) {
+            final Iterator<String> it = mMissingPackages.iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void request(String key, String packageName, Callback callback, Runnable loader) {
+        final Drawable icon = mIcons.get(key);
+        if (icon != null) {
+            callback.onIconLoaded(packageName, copy(icon));
+            return;
+        }
+        synchronized (mPendingRequests) {
+            if (mMissingPackages.contains(key)) {
+                // Its callback already got a null icon, calling it again could make it request
+                // the icon again forever
+                return;
+            }
+            ArrayList<Callback> callbacks = mPendingRequests.get(key);
+            if (callbacks != null) {
+                // Already loading, the callback is called with the others
+                if (!callbacks.contains(callback)) {
+                    callbacks.add(callback);
+                }
+                return;
+            }
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mPendingRequests.put(key, callbacks);
+        }
+        mExecutor.execute(loader);
+    }
+
+    private void deliver(String key, final String packageName, final Drawable icon) {
+        final ArrayList<Callback> callbacks;
+        synchronized (mPendingRequests) {
+            callbacks = mPendingRequests.remove(key);
+        }
+        if (callbacks == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < callbacks.size(); i++) {
+                    callbacks.get(i).onIconLoaded(packageName, copy(icon));
+                }
+            }
+        });
+    }
+
+    private String getKey(String packageName, int userId) {
+        final Resources res = mContext.getResources();
+        return packageName + "/" + userId + "/" + res.getDisplayMetrics().densityDpi + "/"
+                + res.getConfiguration().themeConfig;
+    }
+
+    /**
+     * @return a drawable sharing the bitmap of a cached icon, so that each view showing the
+     *         icon can set its own bounds.
+     */
+    private Drawable copy(Drawable icon) {
+        if (icon == null) {
+            return null;
+        }
+        final Drawable.ConstantState state = icon.getConstantState();
+        return (state != null) ? state.newDrawable(mContext.getResources()) : icon;
+    }
+
+    private static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable && ((BitmapDrawable) icon).getBitmap() != null) {
+            return ((BitmapDrawable) icon).getBitmap().getByteCount();
+        }
+        // Assume the drawable is drawn into an ARGB bitmap of its size
+        return Math.max(1, icon.getIntrinsicWidth() * icon.getIntrinsicHeight() * 4);
+    }
+
+    /**
+     * Queue of the loader threads, taking the last requests first.
+     */
+    private static final class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
+        }
+    }
+}
@@ -105,6 +105,9 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // Forget what was cached about the package, or all of them for sdcard events.
+            AppOpsState.invalidatePackageCache(intent.getData() != null
+                    ? intent.getData().getSchemeSpecificPart() : null);
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -18,7 +18,10 @@ package com.android.settings.applications;
 
 import android.app.Activity;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -37,10 +40,16 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class AppOpsState {
     static final String TAG = "AppOpsState";
@@ -56,6 +65,29 @@ public class AppOpsState {
 
     private SharedPreferences mPreferences;
 
+    // Package data shared by all the AppOpsState instances, so that switching between the
+    // tabs does not query the package manager and load the labels again.  An entry is only
+    // used for the same apk, and the labels for the same locale.  Synchronized on itself.
+    private static final HashMap<String, CachedPackage> sPackageCache =
+            new HashMap<String, CachedPackage>();
+    private static Locale sPackageCacheLocale;
+
+    // Keeps the cache up to date for as long as the process lives: a package can be enabled
+    // or disabled without its apk changing while no App ops screen is shown.
+    private static BroadcastReceiver sPackageReceiver;
+
+    // Loads the labels missing from the cache in parallel.
+    private static ThreadPoolExecutor sLabelExecutor;
+
+    static final class CachedPackage {
+        String sourceDir;
+        long apkModified;
+        ApplicationInfo appInfo;
+        // Package info with the permissions
+        PackageInfo permsInfo;
+        String label;
+    }
+
     public AppOpsState(Context context) {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
@@ -63,6 +95,44 @@ public class AppOpsState {
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries_cm);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels_cm);
         mPreferences = context.getSharedPreferences("appops_manager", Activity.MODE_PRIVATE);
+        registerPackageReceiver(context.getApplicationContext());
+    }
+
+    private static void registerPackageReceiver(Context context) {
+        synchronized (sPackageCache) {
+            if (sPackageReceiver != null) {
+                return;
+            }
+            sPackageReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    final String action = intent.getAction();
+                    if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                            || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                        final String[] packages = intent.getStringArrayExtra(
+                                Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                        if (packages == null) {
+                            invalidatePackageCache(null);
+                            return;
+                        }
+                        for (String packageName : packages) {
+                            invalidatePackageCache(packageName);
+                        }
+                    } else if (intent.getData() != null) {
+                        invalidatePackageCache(intent.getData().getSchemeSpecificPart());
+                    }
+                }
+            };
+        }
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(sPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(sPackageReceiver, sdFilter);
     }
 
     public static class OpsTemplate implements Parcelable {
@@ -244,7 +314,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).loadIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -254,7 +324,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).loadIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -269,6 +339,19 @@ public class AppOpsState {
             return mLabel;
         }
 
+        void setLabel(String label) {
+            mMounted = true;
+            mLabel = label;
+        }
+
+        boolean hasLabel() {
+            return mLabel != null;
+        }
+
+        boolean isMounted() {
+            return mMounted;
+        }
+
         void loadLabel(Context context) {
             if (mLabel == null || !mMounted) {
                 if (!mApkFile.exists()) {
@@ -490,6 +573,9 @@ public class AppOpsState {
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
             final String packageName, ApplicationInfo appInfo, boolean applyFilters) {
 
+        if (appInfo == null) {
+            appInfo = getCachedApplicationInfo(packageName);
+        }
         if (appInfo == null) {
             try {
                 appInfo = mPm.getApplicationInfo(packageName,
@@ -499,6 +585,9 @@ public class AppOpsState {
                 Log.w(TAG, "Unable to find info for package " + packageName);
                 return null;
             }
+            synchronized (sPackageCache) {
+                getCachedPackageLocked(appInfo).appInfo = appInfo;
+            }
         }
 
         if (applyFilters) {
@@ -517,12 +606,132 @@ public class AppOpsState {
         AppEntry appEntry = appEntries.get(packageName);
         if (appEntry == null) {
             appEntry = new AppEntry(this, appInfo);
-            appEntry.loadLabel(context);
+            // The labels missing from the cache are loaded together by loadLabels()
+            synchronized (sPackageCache) {
+                CachedPackage cached = getCachedPackageLocked(appInfo);
+                if (cached.label != null) {
+                    appEntry.setLabel(cached.label);
+                }
+            }
             appEntries.put(packageName, appEntry);
         }
         return appEntry;
     }
 
+    /**
+     * Forget the cached data of a package, or of all the packages if null.
+     */
+    public static void invalidatePackageCache(String packageName) {
+        synchronized (sPackageCache) {
+            if (packageName == null) {
+                sPackageCache.clear();
+            } else {
+                sPackageCache.remove(packageName);
+            }
+        }
+    }
+
+    /**
+     * @return the cache entry of a package, reset if the apk has changed since it was cached.
+     */
+    private static CachedPackage getCachedPackageLocked(ApplicationInfo appInfo) {
+        final long apkModified = new File(appInfo.sourceDir).lastModified();
+        CachedPackage cached = sPackageCache.get(appInfo.packageName);
+        if (cached == null || !appInfo.sourceDir.equals(cached.sourceDir)
+                || cached.apkModified != apkModified) {
+            cached = new CachedPackage();
+            cached.sourceDir = appInfo.sourceDir;
+            cached.apkModified = apkModified;
+            sPackageCache.put(appInfo.packageName, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * @return the cached info of a package if its apk has not changed since, or null.
+     */
+    private static ApplicationInfo getCachedApplicationInfo(String packageName) {
+        synchronized (sPackageCache) {
+            CachedPackage cached = sPackageCache.get(packageName);
+            if (cached == null || cached.appInfo == null) {
+                return null;
+            }
+            if (getCachedPackageLocked(cached.appInfo) != cached) {
+                // The apk changed, the entry has been reset
+                return null;
+            }
+            return cached.appInfo;
+        }
+    }
+
+    private PackageInfo getPackageInfoWithPermissions(String packageName)
+            throws NameNotFoundException {
+        synchronized (sPackageCache) {
+            CachedPackage cached = sPackageCache.get(packageName);
+            if (cached != null && cached.permsInfo != null
+                    && getCachedPackageLocked(cached.permsInfo.applicationInfo) == cached) {
+                return cached.permsInfo;
+            }
+        }
+        PackageInfo info = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+        synchronized (sPackageCache) {
+            getCachedPackageLocked(info.applicationInfo).permsInfo = info;
+        }
+        return info;
+    }
+
+    /**
+     * Load the labels of the entries that were not cached, in parallel.
+     */
+    private void loadLabels(Collection<AppEntry> appEntries) {
+        final ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final AppEntry appEntry : appEntries) {
+            if (appEntry.hasLabel()) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    appEntry.loadLabel(mContext);
+                    if (appEntry.isMounted()) {
+                        synchronized (sPackageCache) {
+                            getCachedPackageLocked(appEntry.getApplicationInfo()).label =
+                                    appEntry.getLabel();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Loading " + tasks.size() + " labels");
+        try {
+            getLabelExecutor().invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever was not loaded because of an interruption
+        for (AppEntry appEntry : appEntries) {
+            if (!appEntry.hasLabel()) {
+                appEntry.loadLabel(mContext);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor getLabelExecutor() {
+        synchronized (sPackageCache) {
+            if (sLabelExecutor == null) {
+                final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+                sLabelExecutor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>());
+                sLabelExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sLabelExecutor;
+        }
+    }
+
     private boolean shouldShowUserApps() {
         return mPreferences.getBoolean("show_user_apps", true);
     }
@@ -534,6 +743,13 @@ public class AppOpsState {
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
         final Context context = mContext;
 
+        synchronized (sPackageCache) {
+            if (!Locale.getDefault().equals(sPackageCacheLocale)) {
+                sPackageCache.clear();
+                sPackageCacheLocale = Locale.getDefault();
+            }
+        }
+
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
         final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
 
@@ -598,7 +814,7 @@ public class AppOpsState {
             PackageInfo appInfo = apps.get(i);
             if (packageName == null && appInfo.packageName != null) {
                 try {
-                    appInfo = mPm.getPackageInfo(appInfo.packageName, PackageManager.GET_PERMISSIONS);
+                    appInfo = getPackageInfoWithPermissions(appInfo.packageName);
                 } catch (NameNotFoundException e) {
                     if (DEBUG) Log.w(TAG, "Exception: " + e.toString());
                     appInfo = apps.get(i);
@@ -657,6 +873,8 @@ public class AppOpsState {
             }
         }
 
+        loadLabels(appEntries.values());
+
         // Sort the list.
         Collections.sort(entries, APP_OP_COMPARATOR);
 
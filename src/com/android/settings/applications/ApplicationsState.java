@@ -30,7 +30,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -47,7 +50,7 @@ public class ApplicationsState {
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
         public void onPackageIconChanged();
-        public void onPackageSizeChanged(String packageName);
+        public void onPackageSizesChanged(Set<String> packageNames);
         public void onAllSizesComputed();
     }
 
@@ -59,6 +62,18 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package sizes computed at the same time by default
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 4;
+
+    // Number of packages whose size is computed before the others, the oldest are dropped
+    static final int MAX_PRIORITY_SIZE_PACKAGES = 32;
+
+    // Size changes are reported to the sessions together if they are this close
+    static final long SIZE_CHANGED_BATCH_DELAY = 100;
+
+    // Waiting longer than this for mEntriesMap counts as a contention
+    static final long LOCK_CONTENTION_NANOS = 100 * 1000;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -112,16 +127,57 @@ public class ApplicationsState {
         String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
+        // Label and icon saved by a previous process, to be loaded again in the background
+        boolean labelStale;
+        boolean iconStale;
+        AppEntryCache.Record cachedRecord;
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntryCache cache) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            final AppEntryCache.Record cached = cache.get(info.packageName, apkFile);
+            if (cached != null) {
+                applyCachedRecord(context, cached);
+            } else {
+                cache.invalidate();
+                ensureLabel(context);
+            }
+        }
+
+        /**
+         * Start with the values saved by a previous process. The label, icon and sizes are
+         * stale so that they get loaded again; the icon is only decoded by
+         * {@link #ensureCachedIconLocked} on the background thread.
+         */
+        private void applyCachedRecord(Context context, AppEntryCache.Record cached) {
+            this.mounted = true;
+            this.label = cached.label;
+            this.labelStale = true;
+            this.iconStale = true;
+            this.cachedRecord = cached;
+            this.size = cached.size;
+            this.internalSize = cached.internalSize;
+            this.externalSize = cached.externalSize;
+            this.cacheSize = cached.cacheSize;
+            this.codeSize = cached.codeSize;
+            this.dataSize = cached.dataSize;
+            this.externalCodeSize = cached.externalCodeSize;
+            this.externalDataSize = cached.externalDataSize;
+            this.externalCacheSize = cached.externalCacheSize;
+            if (this.size >= 0) {
+                this.sizeStr = Formatter.formatFileSize(context, this.size);
+            }
+            if (this.internalSize >= 0) {
+                this.internalSizeStr = Formatter.formatFileSize(context, this.internalSize);
+            }
+            if (this.externalSize >= 0) {
+                this.externalSizeStr = Formatter.formatFileSize(context, this.externalSize);
+            }
         }
         
         void ensureLabel(Context context) {
@@ -134,13 +190,57 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                this.labelStale = false;
             }
         }
+
+        /**
+         * Set the icon saved by a previous process, if there is no icon yet.
+         *
+         * @return true if the icon was set.
+         */
+        boolean ensureCachedIconLocked(AppEntryCache cache) {
+            if (this.icon != null || this.cachedRecord == null) {
+                return false;
+            }
+            this.icon = cache.getIcon(this.cachedRecord);
+            return this.icon != null;
+        }
+
+        /**
+         * Load again the label and icon saved by a previous process.
+         *
+         * @return true if the label changed.
+         */
+        boolean refreshStaleLocked(Context context) {
+            boolean labelChanged = false;
+            if (this.labelStale) {
+                final String oldLabel = this.label;
+                this.labelStale = false;
+                this.label = null;
+                ensureLabel(context);
+                if (!this.label.equals(oldLabel)) {
+                    this.normalizedLabel = null;
+                    labelChanged = true;
+                }
+            }
+            if (this.iconStale) {
+                if (this.mounted) {
+                    this.icon = AppIconCache.getInstance(context).loadIcon(this.info);
+                }
+                this.iconStale = false;
+            }
+            if (!this.labelStale && !this.iconStale) {
+                this.cachedRecord = null;
+            }
+            return labelChanged;
+        }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).loadIcon(this.info);
+                    this.iconStale = false;
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +252,8 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).loadIcon(this.info);
+                    this.iconStale = false;
                     return true;
                 }
             }
@@ -266,6 +367,8 @@ public class ApplicationsState {
     final Context mContext;
     final PackageManager mPm;
     final int mRetrieveFlags;
+    final AppEntryCache mEntryCache;
+    final AppIconCache mIconCache;
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
@@ -279,18 +382,66 @@ public class ApplicationsState {
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    final AtomicLong mCurId = new AtomicLong(1);
+    // Packages whose size is being computed, and packages to compute first
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    final ArrayList<String> mPrioritySizePkgs = new ArrayList<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
+    // Packages whose size changed, not yet reported to the sessions
+    final HashSet<String> mChangedSizePkgs = new HashSet<String>();
     boolean mSessionsChanged;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    // Contention of the main thread on mEntriesMap: acquisitions, acquisitions that had to
+    // wait, and total time waited.  Labels, icons and sizes are loaded without holding
+    // mEntriesMap, so that the main thread does not wait for them.
+    final AtomicLong mLockAcquisitions = new AtomicLong();
+    final AtomicLong mLockContentions = new AtomicLong();
+    final AtomicLong mLockWaitNanos = new AtomicLong();
+
+    /**
+     * Tell the sessions that a package was added, removed or changed since they built their
+     * list, so that their next rebuild can update only this package.
+     */
+    void notePackageChangedLocked(String packageName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mChangedPackages.add(packageName);
+        }
+    }
+
+    /**
+     * Tell the sessions that their next rebuild has to filter and sort all the packages.
+     */
+    void noteAllPackagesChangedLocked() {
+        for (int i=0; i<mSessions.size(); i++) {
+            final Session session = mSessions.get(i);
+            session.mNeedFullRebuild = true;
+            session.mChangedPackages.clear();
+        }
+    }
+
+    /**
+     * Count an acquisition of mEntriesMap.
+     *
+     * @param waitStart the {@link System#nanoTime()} before waiting for the lock.
+     */
+    void noteLockAcquired(long waitStart) {
+        final long wait = System.nanoTime() - waitStart;
+        mLockAcquisitions.incrementAndGet();
+        if (wait > LOCK_CONTENTION_NANOS) {
+            mLockContentions.incrementAndGet();
+            mLockWaitNanos.addAndGet(wait);
+        }
+    }
+
     /**
      * Releases the member variables in ApplicationsState
      */
     public void releaseApplicationState() {
         synchronized (mEntriesMap) {
+            noteAllPackagesChangedLocked();
             releaseSessions(mSessions);
             mEntriesMap.clear();
             mAppEntries.clear();
@@ -409,9 +560,16 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
+                    final HashSet<String> packageNames;
+                    synchronized (mEntriesMap) {
+                        packageNames = new HashSet<String>(mChangedSizePkgs);
+                        mChangedSizePkgs.clear();
+                    }
+                    if (packageNames.isEmpty()) {
+                        break;
+                    }
                     for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                        mActiveSessions.get(i).mCallbacks.onPackageSizesChanged(packageNames);
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -448,6 +606,8 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mEntryCache = new AppEntryCache(app);
+        mIconCache = AppIconCache.getInstance(app);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -498,13 +658,25 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // Last list built and how, only touched by the background thread.  The next list is
+        // built from it when only a few packages changed since.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        ArrayList<AppEntry> mLastBuiltList;
+
+        // Synchronized on mEntriesMap.
+        final HashSet<String> mChangedPackages = new HashSet<String>();
+        boolean mNeedFullRebuild = true;
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+            final long waitStart = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquired(waitStart);
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
@@ -516,7 +688,9 @@ public class ApplicationsState {
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
+            final long waitStart = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquired(waitStart);
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -530,7 +704,9 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
+                final long waitStart = System.nanoTime();
                 synchronized (mEntriesMap) {
+                    noteLockAcquired(waitStart);
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -585,12 +761,53 @@ public class ApplicationsState {
                 filter.init();
             }
             
+            final HashSet<String> changedPackages;
+            final boolean incremental;
+            synchronized (mEntriesMap) {
+                incremental = !mNeedFullRebuild && mLastBuiltList != null
+                        && filter == mLastFilter && comparator == mLastComparator
+                        && mChangedPackages.size() <= mLastBuiltList.size() / 4;
+                changedPackages = new HashSet<String>(mChangedPackages);
+                mChangedPackages.clear();
+                mNeedFullRebuild = false;
+            }
+
+            ArrayList<AppEntry> filteredApps = incremental
+                    ? buildListIncrementally(filter, comparator, changedPackages)
+                    : buildList(filter, comparator);
+            mLastFilter = filter;
+            mLastComparator = comparator;
+            mLastBuiltList = filteredApps;
+
+            synchronized (mRebuildSync) {
+                if (!mRebuildRequested) {
+                    mLastAppList = filteredApps;
+                    if (!mRebuildAsync) {
+                        mRebuildResult = filteredApps;
+                        mRebuildSync.notifyAll();
+                    } else {
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
+                            Message msg = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_REBUILD_COMPLETE, this);
+                            mMainHandler.sendMessage(msg);
+                        }
+                    }
+                }
+            }
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        /**
+         * Filter and sort all the applications.
+         */
+        private ArrayList<AppEntry> buildList(AppFilter filter, Comparator<AppEntry> comparator) {
             List<ApplicationInfo> apps;
             synchronized (mEntriesMap) {
                 apps = new ArrayList<ApplicationInfo>(mApplications);
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
+            ArrayList<ApplicationInfo> filteredInfos = new ArrayList<ApplicationInfo>();
             if (DEBUG) Log.i(TAG, "Rebuilding...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
@@ -599,41 +816,103 @@ public class ApplicationsState {
                     continue;
                 }
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredInfos.add(info);
+                }
+            }
+
+            // Take the lock once for all the apps, the missing entries are created without it
+            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>(filteredInfos.size());
+            ArrayList<ApplicationInfo> missingInfos = new ArrayList<ApplicationInfo>();
+            synchronized (mEntriesMap) {
+                if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                for (int i=0; i<filteredInfos.size(); i++) {
+                    ApplicationInfo info = filteredInfos.get(i);
+                    AppEntry entry = mEntriesMap.get(info.packageName);
+                    if (entry != null) {
+                        entry.info = info;
                         filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    } else {
+                        missingInfos.add(info);
                     }
                 }
+                if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+            }
+            for (int i=0; i<filteredApps.size(); i++) {
+                AppEntry entry = filteredApps.get(i);
+                synchronized (entry) {
+                    entry.ensureLabel(mContext);
+                }
+            }
+            for (int i=0; i<missingInfos.size(); i++) {
+                AppEntry entry = addEntry(missingInfos.get(i));
+                if (DEBUG) Log.i(TAG, "Using " + entry.info.packageName + ": " + entry);
+                filteredApps.add(entry);
             }
 
             Collections.sort(filteredApps, comparator);
+            return filteredApps;
+        }
 
-            synchronized (mRebuildSync) {
-                if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
-                    if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
-                        mRebuildSync.notifyAll();
-                    } else {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_REBUILD_COMPLETE, this);
-                            mMainHandler.sendMessage(msg);
-                        }
+        /**
+         * Apply the changes of packages to the last list built with the same filter and
+         * comparator: the changed packages are removed, and inserted again at their sorted
+         * position if they still pass the filter.
+         */
+        private ArrayList<AppEntry> buildListIncrementally(AppFilter filter,
+                Comparator<AppEntry> comparator, HashSet<String> changedPackages) {
+            if (DEBUG) Log.i(TAG, "Rebuilding " + changedPackages.size() + " packages...");
+            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>(
+                    mLastBuiltList.size() + changedPackages.size());
+            for (int i=0; i<mLastBuiltList.size(); i++) {
+                AppEntry entry = mLastBuiltList.get(i);
+                if (!changedPackages.contains(entry.info.packageName)) {
+                    filteredApps.add(entry);
+                }
+            }
+            if (changedPackages.isEmpty()) {
+                return filteredApps;
+            }
+
+            ArrayList<ApplicationInfo> changedInfos = new ArrayList<ApplicationInfo>();
+            synchronized (mEntriesMap) {
+                for (String packageName : changedPackages) {
+                    int idx = indexOfApplicationInfoLocked(packageName);
+                    if (idx >= 0) {
+                        changedInfos.add(mApplications.get(idx));
                     }
                 }
             }
 
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (int i=0; i<changedInfos.size(); i++) {
+                ApplicationInfo info = changedInfos.get(i);
+                //protected app
+                if (info.protect || (filter != null && !filter.filterApp(info))) {
+                    continue;
+                }
+                AppEntry entry;
+                synchronized (mEntriesMap) {
+                    entry = mEntriesMap.get(info.packageName);
+                    if (entry != null) {
+                        entry.info = info;
+                    }
+                }
+                if (entry == null) {
+                    entry = addEntry(info);
+                }
+                synchronized (entry) {
+                    entry.ensureLabel(mContext);
+                }
+                int pos = Collections.binarySearch(filteredApps, entry, comparator);
+                filteredApps.add(pos >= 0 ? pos : -pos - 1, entry);
+            }
+            return filteredApps;
         }
 
         public void release() {
             pause();
+            final long waitStart = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquired(waitStart);
                 mSessions.remove(this);
             }
         }
@@ -641,7 +920,9 @@ public class ApplicationsState {
 
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
+        final long waitStart = System.nanoTime();
         synchronized (mEntriesMap) {
+            noteLockAcquired(waitStart);
             mSessions.add(s);
         }
         return s;
@@ -672,6 +953,8 @@ public class ApplicationsState {
             }
         }
 
+        noteAllPackagesChangedLocked();
+
         mHaveDisabledApps = false;
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
@@ -690,7 +973,7 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -714,11 +997,18 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        if (DEBUG_LOCKING) {
+            Log.d(TAG, "mEntriesMap: " + mLockAcquisitions.get() + " acquisitions, "
+                    + mLockContentions.get() + " contended, "
+                    + (mLockWaitNanos.get() / 1000000) + " ms waited");
+        }
     }
 
     AppEntry getEntry(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        final long waitStart = System.nanoTime();
         synchronized (mEntriesMap) {
+            noteLockAcquired(waitStart);
             AppEntry entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
@@ -742,16 +1032,66 @@ public class ApplicationsState {
             entry.ensureIconLocked(mContext, mPm);
         }
     }
+
+    /**
+     * Load the icon of an entry shown on screen, before the icons loaded in the background.
+     * The icon is set at once if it is cached, otherwise the sessions are told with
+     * onPackageIconChanged() when it has been loaded.
+     */
+    void requestIcon(final AppEntry entry) {
+        if (entry.icon != null) {
+            return;
+        }
+        if (mIconCache.getCachedIcon(entry.info) != null) {
+            ensureIcon(entry);
+            return;
+        }
+        mIconCache.requestIcon(entry.info, new AppIconCache.Callback() {
+            @Override
+            public void onIconLoaded(String packageName, Drawable icon) {
+                // Now a cache hit
+                ensureIcon(entry);
+                mEntryCache.invalidate();
+                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                }
+            }
+        });
+    }
     
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
+        AppEntry entry;
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
+            entry = mEntriesMap.get(packageName);
             if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
         }
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
+        }
+    }
+
+    /**
+     * Set how many package sizes can be computed at the same time.
+     */
+    void setMaxConcurrentSizeRequests(int maxRequests) {
+        synchronized (mEntriesMap) {
+            mMaxSizeRequests = Math.max(1, maxRequests);
+        }
+    }
+
+    /**
+     * Compute the size of a package before the others, typically because it is showing.
+     * Must not be called while holding the lock of an {@link AppEntry}.
+     */
+    void prioritizeSize(String packageName) {
+        synchronized (mEntriesMap) {
+            mPrioritySizePkgs.remove(packageName);
+            mPrioritySizePkgs.add(packageName);
+            if (mPrioritySizePkgs.size() > MAX_PRIORITY_SIZE_PACKAGES) {
+                mPrioritySizePkgs.remove(0);
+            }
+        }
     }
 
     long sumCacheSizes() {
@@ -802,6 +1142,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                notePackageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -815,6 +1156,7 @@ public class ApplicationsState {
     }
 
     void removePackage(String pkgName) {
+        mIconCache.invalidate(pkgName);
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
             int idx = indexOfApplicationInfoLocked(pkgName);
@@ -825,9 +1167,11 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mEntryCache.invalidate();
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                notePackageChangedLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -855,7 +1199,7 @@ public class ApplicationsState {
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            entry = new AppEntry(mContext, info, mCurId.getAndIncrement(), mEntryCache);
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
         } else if (entry.info != info) {
@@ -864,6 +1208,26 @@ public class ApplicationsState {
         return entry;
     }
 
+    /**
+     * Create the entry of an application without holding mEntriesMap, since loading its
+     * label can be slow.
+     *
+     * @return the entry added, or the one added by another thread in the meantime.
+     */
+    AppEntry addEntry(ApplicationInfo info) {
+        AppEntry newEntry = new AppEntry(mContext, info, mCurId.getAndIncrement(), mEntryCache);
+        synchronized (mEntriesMap) {
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry != null) {
+                entry.info = info;
+                return entry;
+            }
+            mEntriesMap.put(info.packageName, newEntry);
+            mAppEntries.add(newEntry);
+            return newEntry;
+        }
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -939,17 +1303,21 @@ public class ApplicationsState {
                                 if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
+                                mEntryCache.invalidate();
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            notePackageChangedLocked(stats.packageName);
+                            mChangedSizePkgs.add(stats.packageName);
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                                mMainHandler.sendEmptyMessageDelayed(
+                                        MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                                        SIZE_CHANGED_BATCH_DELAY);
+                            }
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -963,6 +1331,9 @@ public class ApplicationsState {
 
         @Override
         public void handleMessage(Message msg) {
+            // The entries saved by a previous process are needed to build the entries
+            mEntryCache.ensureLoaded();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -981,10 +1352,10 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    ArrayList<ApplicationInfo> missingInfos = new ArrayList<ApplicationInfo>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && missingInfos.size()<6; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -993,46 +1364,88 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                missingInfos.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // The labels are loaded without the lock
+                    for (int i=0; i<missingInfos.size(); i++) {
+                        addEntry(missingInfos.get(i));
+                    }
 
-                    if (numDone >= 6) {
+                    if (missingInfos.size() >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
+                    ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                            if (entry.icon == null || !entry.mounted || entry.iconStale
+                                    || entry.labelStale) {
+                                entries.add(entry);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
-                    if (numDone > 0) {
+                    // The icons are loaded without the lock. The icons saved by a previous
+                    // process are quick to decode, so they are all shown first.
+                    int numCached = 0;
+                    for (int i=0; i<entries.size(); i++) {
+                        AppEntry entry = entries.get(i);
+                        synchronized (entry) {
+                            if (entry.ensureCachedIconLocked(mEntryCache)) {
+                                numCached++;
+                            }
+                        }
+                    }
+                    int numDone = 0;
+                    ArrayList<String> relabeled = null;
+                    for (int i=0; i<entries.size() && numDone<2; i++) {
+                        AppEntry entry = entries.get(i);
+                        synchronized (entry) {
+                            final boolean stale = entry.iconStale || entry.labelStale;
+                            boolean changed = entry.ensureIconLocked(mContext, mPm);
+                            if (stale && entry.refreshStaleLocked(mContext)) {
+                                if (relabeled == null) {
+                                    relabeled = new ArrayList<String>();
+                                }
+                                relabeled.add(entry.info.packageName);
+                            }
+                            changed |= stale;
+                            if (changed) {
+                                mEntryCache.invalidate();
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
+                                }
+                                numDone++;
+                            }
+                        }
+                    }
+                    if (numDone > 0 || numCached > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
                         }
                     }
+                    if (relabeled != null) {
+                        // The lists are sorted by label
+                        synchronized (mEntriesMap) {
+                            for (int i=0; i<relabeled.size(); i++) {
+                                notePackageChangedLocked(relabeled.get(i));
+                            }
+                        }
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+                        }
+                    }
                     if (numDone >= 2) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
@@ -1040,33 +1453,37 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    ArrayList<AppEntry> entriesToSave = null;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
+                        if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
                             if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
                             return;
                         }
 
                         long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
+                        boolean pending = false;
+                        // Packages showing first, most recently shown first
+                        for (int i=mPrioritySizePkgs.size()-1; i>=0
+                                && mComputingSizePkgs.size() < mMaxSizeRequests; i--) {
+                            AppEntry entry = mEntriesMap.get(mPrioritySizePkgs.remove(i));
+                            if (entry != null && (entry.size == SIZE_UNKNOWN || entry.sizeStale)) {
+                                pending = true;
+                                startSizeLoadLocked(entry, now);
+                            }
+                        }
+                        for (int i=0; i<mAppEntries.size()
+                                && mComputingSizePkgs.size() < mMaxSizeRequests; i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                pending = true;
+                                startSizeLoadLocked(entry, now);
                             }
                         }
+                        if (pending || !mComputingSizePkgs.isEmpty()) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -1074,11 +1491,34 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        entriesToSave = new ArrayList<AppEntry>(mAppEntries);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    // Everything is loaded, save it for the next cold start
+                    mEntryCache.save(entriesToSave);
                 } break;
             }
         }
 
+        /**
+         * Start computing the size of an entry, unless it is already being computed. A
+         * computation that did not complete within 20s is started again.
+         */
+        private void startSizeLoadLocked(AppEntry entry, long now) {
+            final String packageName = entry.info.packageName;
+            if (entry.sizeLoadStart != 0 && entry.sizeLoadStart >= (now-20*1000)) {
+                return;
+            }
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.add(packageName);
+            mPm.getPackageSizeInfo(packageName, mStatsObserver);
+        }
+
     }
 }
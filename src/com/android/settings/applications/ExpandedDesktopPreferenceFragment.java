@@ -53,6 +53,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ExpandedDesktopPreferenceFragment extends SettingsPreferenceFragment
         implements AdapterView.OnItemClickListener, ApplicationsState.Callbacks,
@@ -261,7 +262,7 @@ public class ExpandedDesktopPreferenceFragment extends SettingsPreferenceFragmen
     }
 
     @Override
-    public void onPackageSizeChanged(String packageName) {
+    public void onPackageSizesChanged(Set<String> packageNames) {
     }
 
     @Override
@@ -69,6 +69,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -719,8 +720,8 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onPackageSizeChanged(String packageName) {
-        if (packageName.equals(mAppEntry.info.packageName)) {
+    public void onPackageSizesChanged(Set<String> packageNames) {
+        if (packageNames.contains(mAppEntry.info.packageName)) {
             refreshSizeInfo();
         }
     }
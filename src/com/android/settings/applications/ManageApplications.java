@@ -34,6 +34,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.net.NetworkPolicyManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -79,8 +80,11 @@ import com.android.settings.deviceinfo.StorageMeasurement;
 import com.android.settings.Utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 final class CanBeOnSdCardChecker {
     final IPackageManager mPm;
@@ -568,6 +572,87 @@ public class ManageApplications extends Fragment implements
         }
     }
 
+    /**
+     * Index of the words of the normalized labels of a list of entries, to find the entries
+     * with a label or one of its words starting with a prefix without scanning every label.
+     *
+     * The index holds, sorted, each suffix of a label that starts a word; the suffixes
+     * starting with a prefix are next to each other: the first one is found with a binary search
+     * and the others follow it.
+     */
+    static class LabelPrefixIndex {
+        final ArrayList<ApplicationsState.AppEntry> mEntries;
+        private final String[] mSuffixes;
+        // Position in mEntries of the entry of each suffix
+        private final int[] mPositions;
+
+        LabelPrefixIndex(ArrayList<ApplicationsState.AppEntry> entries) {
+            mEntries = entries;
+            final ArrayList<String> suffixes = new ArrayList<String>(entries.size() * 2);
+            final ArrayList<Integer> positions = new ArrayList<Integer>(entries.size() * 2);
+            for (int i=0; i<entries.size(); i++) {
+                String nlabel = entries.get(i).getNormalizedLabel();
+                for (int start=0; start<nlabel.length(); start++) {
+                    if (start == 0 || nlabel.charAt(start-1) == ' ') {
+                        suffixes.add(nlabel.substring(start));
+                        positions.add(i);
+                    }
+                }
+            }
+            final Integer[] order = new Integer[suffixes.size()];
+            for (int i=0; i<order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return suffixes.get(lhs).compareTo(suffixes.get(rhs));
+                }
+            });
+            mSuffixes = new String[order.length];
+            mPositions = new int[order.length];
+            for (int i=0; i<order.length; i++) {
+                mSuffixes[i] = suffixes.get(order[i]);
+                mPositions[i] = positions.get(order[i]);
+            }
+        }
+
+        /**
+         * @return the entries with a label or a word of their label starting with the
+         *         normalized prefix, in the order of the indexed list.
+         */
+        ArrayList<ApplicationsState.AppEntry> find(String prefix) {
+            if (prefix.length() == 0) {
+                return new ArrayList<ApplicationsState.AppEntry>(mEntries);
+            }
+            final int start = lowerBound(prefix);
+            final BitSet found = new BitSet(mEntries.size());
+            for (int i=start; i<mSuffixes.length && mSuffixes[i].startsWith(prefix); i++) {
+                found.set(mPositions[i]);
+            }
+            final ArrayList<ApplicationsState.AppEntry> result
+                    = new ArrayList<ApplicationsState.AppEntry>(found.cardinality());
+            for (int i=found.nextSetBit(0); i>=0; i=found.nextSetBit(i+1)) {
+                result.add(mEntries.get(i));
+            }
+            return result;
+        }
+
+        private int lowerBound(String prefix) {
+            int low = 0;
+            int high = mSuffixes.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mSuffixes[mid].compareTo(prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
     /*
      * Custom adapter implementation for the ListView
      * This adapter maintains a map for each displayed application and its properties
@@ -583,6 +668,8 @@ public class ManageApplications extends Fragment implements
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
         private final Context mContext;
+        // Shown until the icon of a row is loaded
+        private final Drawable mDefaultIcon;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private final int mFilterMode;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
@@ -592,6 +679,8 @@ public class ManageApplications extends Fragment implements
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
+        // Built for the base entries the first time they are searched
+        private volatile LabelPrefixIndex mLabelIndex;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -618,6 +707,8 @@ public class ManageApplications extends Fragment implements
             mSession = state.newSession(this);
             mTab = tab;
             mContext = tab.mOwner.getActivity();
+            mDefaultIcon = mContext.getResources().getDrawable(
+                    android.R.mipmap.sym_def_app_icon);
             mFilterMode = filterMode;
         }
 
@@ -728,17 +819,12 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
+                LabelPrefixIndex index = mLabelIndex;
+                if (index == null || index.mEntries != origEntries) {
+                    index = new LabelPrefixIndex(origEntries);
+                    mLabelIndex = index;
                 }
-                return newEntries;
+                return index.find(prefixStr);
             }
         }
 
@@ -771,15 +857,26 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // The icons of the rows showing are requested when their item is displayed,
+            // update the rows that were still waiting for theirs.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null
+                            && holder.appIcon.getDrawable() != holder.entry.icon) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
         }
 
         @Override
-        public void onPackageSizeChanged(String packageName) {
+        public void onPackageSizesChanged(Set<String> packageNames) {
+            boolean updated = false;
+            boolean needRebuild = false;
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
-                if (holder.entry.info.packageName.equals(packageName)) {
+                if (packageNames.contains(holder.entry.info.packageName)) {
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
@@ -789,12 +886,17 @@ public class ManageApplications extends Fragment implements
                         // user viewed, and are sorting by size...  they may
                         // have cleared data, so we immediately want to resort
                         // the list with the new size to reflect it to the user.
-                        rebuild(false);
+                        needRebuild = true;
                     }
-                    mTab.updateStorageUsage();
-                    return;
+                    updated = true;
                 }
             }
+            if (needRebuild) {
+                rebuild(false);
+            }
+            if (updated) {
+                mTab.updateStorageUsage();
+            }
         }
 
         @Override
@@ -829,15 +931,14 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            boolean needSize;
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
-                    holder.appIcon.setImageDrawable(entry.icon);
-                }
+                mState.requestIcon(entry);
+                holder.appIcon.setImageDrawable(entry.icon != null ? entry.icon : mDefaultIcon);
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
@@ -850,6 +951,11 @@ public class ManageApplications extends Fragment implements
                 }
                 holder.checkBox.setVisibility(View.GONE);
 
+                needSize = entry.size == ApplicationsState.SIZE_UNKNOWN || entry.sizeStale;
+            }
+            if (needSize) {
+                // Rows showing get their size before the others
+                mState.prioritizeSize(entry.info.packageName);
             }
             mActive.remove(convertView);
             mActive.add(convertView);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManagerNative;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Samples the PSS of the running processes for {@link RunningState}.
+ *
+ * The PSS of a process is kept with the time it was sampled, and only sampled again once it
+ * is older than the sample interval: all the stale processes are sampled together with a
+ * single call to the activity manager.
+ */
+class ProcessMemorySampler {
+    // How old the PSS of a process can be before it is sampled again
+    static final long SAMPLE_INTERVAL = 4000;
+
+    static final class ProcessSample {
+        // PSS in kB
+        long mPss;
+        long mSampleTime;
+        boolean mSampled;
+        // Sequence of the last sample() call asking for this process
+        int mSeenSeq;
+    }
+
+    // Synchronized on itself: sampled by the background thread, read by the UI.
+    private final SparseArray<ProcessSample> mSamples = new SparseArray<ProcessSample>();
+
+    private int mSeq;
+
+    /**
+     * Sample the stale processes with a single call, and forget the processes that are not
+     * asked for anymore.
+     *
+     * @return the PSS in kB of each process, in the same order as the pids.
+     */
+    long[] sample(int[] pids) throws RemoteException {
+        final long now = SystemClock.uptimeMillis();
+        final long[] result = new long[pids.length];
+        int[] stalePids = new int[pids.length];
+        int numStale = 0;
+
+        synchronized (mSamples) {
+            mSeq++;
+            for (int i = 0; i < pids.length; i++) {
+                ProcessSample sample = mSamples.get(pids[i]);
+                if (sample == null) {
+                    sample = new ProcessSample();
+                    mSamples.put(pids[i], sample);
+                }
+                sample.mSeenSeq = mSeq;
+                if (!sample.mSampled || now - sample.mSampleTime >= SAMPLE_INTERVAL) {
+                    stalePids[numStale++] = pids[i];
+                }
+            }
+            for (int i = mSamples.size() - 1; i >= 0; i--) {
+                if (mSamples.valueAt(i).mSeenSeq != mSeq) {
+                    mSamples.removeAt(i);
+                }
+            }
+        }
+
+        if (numStale > 0) {
+            if (numStale < stalePids.length) {
+                final int[] trimmed = new int[numStale];
+                System.arraycopy(stalePids, 0, trimmed, 0, numStale);
+                stalePids = trimmed;
+            }
+            final long[] pss = ActivityManagerNative.getDefault().getProcessPss(stalePids);
+            synchronized (mSamples) {
+                for (int i = 0; i < stalePids.length; i++) {
+                    final ProcessSample sample = mSamples.get(stalePids[i]);
+                    if (sample != null) {
+                        sample.mPss = pss[i];
+                        sample.mSampleTime = now;
+                        sample.mSampled = true;
+                    }
+                }
+            }
+        }
+
+        synchronized (mSamples) {
+            for (int i = 0; i < pids.length; i++) {
+                final ProcessSample sample = mSamples.get(pids[i]);
+                result[i] = (sample != null && sample.mSampled) ? sample.mPss : 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget all the samples, to sample every process again.
+     */
+    void clear() {
+        synchronized (mSamples) {
+            mSamples.clear();
+        }
+    }
+}
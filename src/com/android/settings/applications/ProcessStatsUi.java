@@ -19,6 +19,7 @@ package com.android.settings.applications;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
@@ -31,6 +32,7 @@ import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.text.format.Formatter;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
 import android.util.TimeUtils;
 import android.view.Menu;
@@ -102,6 +104,11 @@ public class ProcessStatsUi extends PreferenceFragment
     private int mStatsType;
     private int mMemRegion;
 
+    // Stats already loaded for each duration, so that switching between durations does
+    // not load them again.
+    private final LongSparseArray<ProcessStats> mStatsCache = new LongSparseArray<ProcessStats>();
+    private LoadStatsTask mLoadStatsTask;
+
     private MenuItem[] mDurationMenus = new MenuItem[NUM_DURATIONS];
     private MenuItem mShowSystemMenu;
     private MenuItem mUseUssMenu;
@@ -187,6 +194,10 @@ public class ProcessStatsUi extends PreferenceFragment
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mLoadStatsTask != null) {
+            mLoadStatsTask.cancel(false);
+            mLoadStatsTask = null;
+        }
         if (getActivity().isChangingConfigurations()) {
             sStatsXfer = mStats;
         }
@@ -309,7 +320,13 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
+                // The running task may still publish stats read before the refresh
+                if (mLoadStatsTask != null) {
+                    mLoadStatsTask.cancel(false);
+                    mLoadStatsTask = null;
+                }
                 mStats = null;
+                mStatsCache.clear();
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -384,7 +401,14 @@ public class ProcessStatsUi extends PreferenceFragment
         updateMenus();
 
         if (mStats == null || mLastDuration != mDuration) {
-            load();
+            final ProcessStats stats = mStatsCache.get(mDuration);
+            if (stats == null) {
+                // Keep showing the current stats until the new ones are loaded
+                loadStats();
+                return;
+            }
+            mStats = stats;
+            mLastDuration = mDuration;
         }
 
         int[] stats;
@@ -783,23 +807,79 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     }
 
-    private void load() {
+    /**
+     * Load the stats of the selected duration in the background. They are kept once loaded, so
+     * that switching back to that duration does not load them again.
+     */
+    private void loadStats() {
+        if (mLoadStatsTask != null) {
+            if (mLoadStatsTask.mStatsDuration == mDuration) {
+                // Already being loaded
+                return;
+            }
+            mLoadStatsTask.cancel(false);
+        }
+        mLoadStatsTask = new LoadStatsTask(mDuration);
+        mLoadStatsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private ProcessStats load(long duration) {
         try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
+            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
+            stats.read(is);
             try {
                 is.close();
             } catch (IOException e) {
             }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
             }
+            return stats;
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the stats of one duration and the current memory state.
+     */
+    private final class LoadStatsTask extends AsyncTask<Void, Void, ProcessStats> {
+        final long mStatsDuration;
+        private int mLoadedMemState = -1;
+
+        LoadStatsTask(long duration) {
+            mStatsDuration = duration;
+        }
+
+        @Override
+        protected ProcessStats doInBackground(Void... params) {
+            try {
+                mLoadedMemState = mProcessStats.getCurrentMemoryState();
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException:", e);
+            }
+            return load(mStatsDuration);
+        }
+
+        @Override
+        protected void onPostExecute(ProcessStats stats) {
+            if (mLoadStatsTask == this) {
+                mLoadStatsTask = null;
+            }
+            if (mLoadedMemState >= 0) {
+                mMemState = mLoadedMemState;
+            }
+            if (stats == null) {
+                return;
+            }
+            mStatsCache.put(mStatsDuration, stats);
+            if (mStatsDuration == mDuration && isAdded()
+                    && (mStats == null || mLastDuration != mDuration)) {
+                refreshStats();
+            }
         }
     }
 }
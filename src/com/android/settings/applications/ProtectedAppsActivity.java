@@ -31,7 +31,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ProtectedAppsActivity extends Activity {
     private static final int REQ_ENTER_PATTERN = 1;
@@ -309,20 +308,17 @@ public class ProtectedAppsActivity extends Activity {
 
         private final LayoutInflater mInflator;
 
-        private ConcurrentHashMap<String, Drawable> mIcons;
+        private AppIconCache mIconCache;
         private Drawable mDefaultImg;
-        private List<AppEntry> mApps;
 
         public AppsAdapter(Context context, int textViewResourceId) {
             super(context, textViewResourceId);
 
-            mApps = new ArrayList<AppEntry>();
-
             mInflator = LayoutInflater.from(context);
 
-            // set the default icon till the actual app icon is loaded in async task
+            // set the default icon till the actual app icon is loaded by the icon cache
             mDefaultImg = context.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-            mIcons = new ConcurrentHashMap<String, Drawable>();
+            mIconCache = AppIconCache.getInstance(context);
         }
 
         @Override
@@ -341,7 +337,10 @@ public class ProtectedAppsActivity extends Activity {
 
             viewHolder.title.setText(app.title);
 
-            Drawable icon = mIcons.get(app.componentName.getPackageName());
+            Drawable icon = mIconCache.getCachedIcon(app.componentName.getPackageName());
+            if (icon == null) {
+                mIconCache.requestIcon(app.componentName.getPackageName(), mIconCallback);
+            }
             viewHolder.icon.setImageDrawable(icon != null ? icon : mDefaultImg);
 
             boolean state = getProtectedStateFromComponentName(app.componentName);
@@ -373,59 +372,12 @@ public class ProtectedAppsActivity extends Activity {
             return true;
         }
 
-        @Override
-        public void notifyDataSetChanged() {
-            super.notifyDataSetChanged();
-            // If we have new items, we have to load their icons
-            // If items were deleted, remove them from our mApps
-            List<AppEntry> newApps = new ArrayList<AppEntry>(getCount());
-            List<AppEntry> oldApps = new ArrayList<AppEntry>(getCount());
-            for (int i = 0; i < getCount(); i++) {
-                AppEntry app = getItem(i);
-                if (mApps.contains(app)) {
-                    oldApps.add(app);
-                } else {
-                    newApps.add(app);
-                }
-            }
-
-            if (newApps.size() > 0) {
-                new LoadIconsTask().execute(newApps.toArray(new AppEntry[] {}));
-                newApps.addAll(oldApps);
-                mApps = newApps;
-            } else {
-                mApps = oldApps;
-            }
-        }
-
-        /**
-         * An asynchronous task to load the icons of the installed applications.
-         */
-        private class LoadIconsTask extends AsyncTask<AppEntry, Void, Void> {
-            @Override
-            protected Void doInBackground(AppEntry... apps) {
-                for (AppEntry app : apps) {
-                    try {
-                        String packageName = app.componentName.getPackageName();
-                        if (mIcons.containsKey(packageName)) {
-                            continue;
-                        }
-                        Drawable icon = mPackageManager.getApplicationIcon(packageName);
-                        mIcons.put(packageName, icon);
-                        publishProgress();
-                    } catch (PackageManager.NameNotFoundException e) {
-                        // ignored; app will show up with default image
-                    }
-                }
-
-                return null;
-            }
-
+        private final AppIconCache.Callback mIconCallback = new AppIconCache.Callback() {
             @Override
-            protected void onProgressUpdate(Void... progress) {
+            public void onIconLoaded(String packageName, Drawable icon) {
                 notifyDataSetChanged();
             }
-        }
+        };
     }
 
     private View.OnClickListener mAppClickListener = new View.OnClickListener() {
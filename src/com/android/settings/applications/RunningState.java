@@ -20,7 +20,6 @@ import com.android.settings.R;
 import com.android.settings.Utils;
 
 import android.app.ActivityManager;
-import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
@@ -50,6 +49,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Singleton for retrieving and monitoring the state about all running
@@ -69,6 +69,10 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // The contents are updated less and less often while nothing changes, up to this delay
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+    // Number of updates without any change before the update delay is doubled
+    static final int UNCHANGED_UPDATES_PER_BACKOFF = 3;
 
     static final int MAX_SERVICES = 100;
 
@@ -138,6 +142,18 @@ public class RunningState {
 
     int mSequence = 0;
 
+    // Services and processes, by pid, returned by the activity manager for the last
+    // sequence.  Used to skip rebuilding the state when they have not changed.
+    List<ActivityManager.RunningServiceInfo> mLastServices;
+    final SparseArray<ActivityManager.RunningAppProcessInfo> mLastProcesses
+            = new SparseArray<ActivityManager.RunningAppProcessInfo>();
+
+    // Number of updates since the services or processes last changed.
+    int mUnchangedUpdates;
+
+    // PSS of the processes, only sampled again once stale.
+    final ProcessMemorySampler mMemorySampler = new ProcessMemorySampler();
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -242,7 +258,7 @@ public class RunningState {
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, getContentsUpdateDelay());
                     break;
             }
         }
@@ -250,6 +266,13 @@ public class RunningState {
 
     final BackgroundHandler mBackgroundHandler;
 
+    final Runnable mResetBackoff = new Runnable() {
+        @Override
+        public void run() {
+            mUnchangedUpdates = 0;
+        }
+    };
+
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
 
@@ -757,15 +780,17 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // Update at once, the next update may have been delayed while nothing changed
+            mBackgroundHandler.post(mResetBackoff);
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
 
     void updateNow() {
         synchronized (mLock) {
+            mBackgroundHandler.post(mResetBackoff);
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
@@ -818,6 +843,61 @@ public class RunningState {
         mProcessItems.clear();
         mAllProcessItems.clear();
         mUsers.clear();
+        mLastServices = null;
+        mLastProcesses.clear();
+        mUnchangedUpdates = 0;
+        mMemorySampler.clear();
+    }
+
+    /**
+     * @return the delay before the next update of the contents, longer when the services and
+     *         processes have not changed for a while.
+     */
+    private long getContentsUpdateDelay() {
+        final int backoff = Math.min(mUnchangedUpdates / UNCHANGED_UPDATES_PER_BACKOFF, 3);
+        return Math.min(CONTENTS_UPDATE_DELAY << backoff, MAX_CONTENTS_UPDATE_DELAY);
+    }
+
+    private static boolean sameServices(List<ActivityManager.RunningServiceInfo> last,
+            List<ActivityManager.RunningServiceInfo> services) {
+        if (last.size() != services.size()) {
+            return false;
+        }
+        for (int i=0; i<services.size(); i++) {
+            ActivityManager.RunningServiceInfo a = last.get(i);
+            ActivityManager.RunningServiceInfo b = services.get(i);
+            if (a.pid != b.pid || a.uid != b.uid || a.restarting != b.restarting
+                    || a.started != b.started || a.foreground != b.foreground
+                    || a.flags != b.flags || a.clientLabel != b.clientLabel
+                    || a.clientCount != b.clientCount || a.activeSince != b.activeSince
+                    || !Objects.equals(a.service, b.service)
+                    || !Objects.equals(a.process, b.process)
+                    || !Objects.equals(a.clientPackage, b.clientPackage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameProcesses(SparseArray<ActivityManager.RunningAppProcessInfo> last,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        if (last.size() != processes.size()) {
+            return false;
+        }
+        for (int i=0; i<processes.size(); i++) {
+            ActivityManager.RunningAppProcessInfo b = processes.get(i);
+            ActivityManager.RunningAppProcessInfo a = last.get(b.pid);
+            if (a == null || a.uid != b.uid || a.importance != b.importance
+                    || a.importanceReasonPid != b.importanceReasonPid
+                    || a.importanceReasonCode != b.importanceReasonCode
+                    || a.flags != b.flags
+                    || !Objects.equals(a.processName, b.processName)
+                    || !Objects.equals(a.importanceReasonComponent,
+                            b.importanceReasonComponent)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -855,10 +935,6 @@ public class RunningState {
 
     private boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
-        
-        mSequence++;
-        
-        boolean changed = false;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -891,7 +967,46 @@ public class RunningState {
         // array for easy retrieval.
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
-        final int NP = processes != null ? processes.size() : 0;
+        if (processes == null) {
+            processes = new ArrayList<ActivityManager.RunningAppProcessInfo>();
+        }
+        if (services == null) {
+            services = new ArrayList<ActivityManager.RunningServiceInfo>();
+        }
+
+        // Only rebuild the processes and services when they changed since the last
+        // update, otherwise the state from the last sequence is still valid and only
+        // the sizes need to be sampled again.
+        boolean changed = false;
+        if (mLastServices == null || !sameServices(mLastServices, services)
+                || !sameProcesses(mLastProcesses, processes)) {
+            mSequence++;
+            changed = updateStructure(context, pm, services, processes);
+            mLastServices = services;
+            mLastProcesses.clear();
+            for (int i=0; i<processes.size(); i++) {
+                mLastProcesses.put(processes.get(i).pid, processes.get(i));
+            }
+            mUnchangedUpdates = 0;
+        } else {
+            mUnchangedUpdates++;
+        }
+
+        changed |= updateSizes(context);
+        return changed;
+    }
+
+    /**
+     * Rebuild the processes and services from the lists returned by the activity manager,
+     * and the items shown if anything changed.
+     */
+    private boolean updateStructure(Context context, PackageManager pm,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        final int NS = services.size();
+        final int NP = processes.size();
+        boolean changed = false;
+
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
@@ -1237,7 +1352,15 @@ public class RunningState {
                 mMergedItems = newMergedItems;
             }
         }
-        
+        return changed;
+    }
+
+    /**
+     * Sample the memory of the processes, and update the background items.
+     */
+    private boolean updateSizes(Context context) {
+        boolean changed = false;
+
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
         mAllProcessItems.clear();
@@ -1245,7 +1368,7 @@ public class RunningState {
         int numBackgroundProcesses = 0;
         int numForegroundProcesses = 0;
         int numServiceProcesses = 0;
-        NRP = mRunningProcesses.size();
+        final int NRP = mRunningProcesses.size();
         for (int i=0; i<NRP; i++) {
             ProcessItem proc = mRunningProcesses.valueAt(i);
             if (proc.mCurSeq != mSequence) {
@@ -1280,8 +1403,7 @@ public class RunningState {
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+            long[] pss = mMemorySampler.sample(pids);
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -33,6 +33,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.android.settings.R;
+import com.android.settings.applications.AppIconCache;
 
 import java.util.Collections;
 import java.util.LinkedList;
@@ -41,6 +42,7 @@ import java.util.TreeSet;
 
 public class PackageListAdapter extends BaseAdapter implements Runnable {
     private PackageManager mPm;
+    private AppIconCache mIconCache;
     private LayoutInflater mInflater;
     private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
 
@@ -86,6 +88,7 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
     public PackageListAdapter(Context context) {
         mPm = context.getPackageManager();
+        mIconCache = AppIconCache.getInstance(context);
         mInflater = LayoutInflater.from(context);
         reloadList();
     }
@@ -161,7 +164,7 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         for (ResolveInfo info : installedAppsInfo) {
             ApplicationInfo appInfo = info.activityInfo.applicationInfo;
             final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
+                    appInfo.loadLabel(mPm), mIconCache.loadIcon(appInfo));
             item.activityTitles.add(info.loadLabel(mPm));
             mHandler.obtainMessage(0, item).sendToTarget();
         }
@@ -170,7 +173,7 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
             try {
                 ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
                 final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
+                        appInfo.loadLabel(mPm), mIconCache.loadIcon(appInfo));
                 mHandler.obtainMessage(0, item).sendToTarget();
             } catch (PackageManager.NameNotFoundException ignored) {
                 // package not present, so nothing to add -> ignore it
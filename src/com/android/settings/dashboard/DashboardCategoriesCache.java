@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Snapshot of the resolved dashboard categories, saved on disk so that a cold start can show
+ * the dashboard without parsing the categories and checking every tile first.
+ *
+ * The categories are saved as a marshalled {@link Parcel}. A snapshot is only valid for the
+ * build, the Settings package and the locale that produced it: the resource ids and the
+ * titles it contains depend on them.
+ */
+public final class DashboardCategoriesCache {
+    private static final String LOG_TAG = "DashboardCategoriesCache";
+
+    private static final String FILE_NAME = "dashboard_categories";
+
+    // Increase when the format of the file or of the parceled categories changes
+    private static final int VERSION = 1;
+
+    private DashboardCategoriesCache() {
+    }
+
+    /**
+     * @return the categories as bytes, used to save them and to compare two lists of
+     *         categories.
+     */
+    public static byte[] marshall(List<DashboardCategory> categories) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(categories);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @return the categories read from bytes returned by {@link #marshall(List)}, or null if
+     *         they cannot be read.
+     */
+    public static ArrayList<DashboardCategory> unmarshall(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(DashboardCategory.CREATOR);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot read the dashboard categories", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Read the saved categories.
+     *
+     * @return the categories as returned by {@link #marshall(List)}, or null if there are none
+     *         or if they have been saved for another build, Settings package or locale.
+     */
+    public static byte[] read(Context context) {
+        final AtomicFile file = getFile(context);
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(file.openRead());
+            if (in.readInt() != VERSION || !getKey(context).equals(in.readUTF())) {
+                return null;
+            }
+            final byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read the dashboard categories", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the categories as returned by {@link #marshall(List)}.
+     */
+    public static void write(Context context, byte[] data) {
+        final AtomicFile file = getFile(context);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            final DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(VERSION);
+            dataOut.writeUTF(getKey(context));
+            dataOut.writeInt(data.length);
+            dataOut.write(data);
+            dataOut.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot save the dashboard categories", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    private static String getKey(Context context) {
+        long lastUpdateTime = 0;
+        try {
+            final PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            lastUpdateTime = info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Cannot happen for our own package
+        }
+        return Build.FINGERPRINT + "/" + lastUpdateTime + "/" + Locale.getDefault().toString();
+    }
+}
@@ -34,7 +34,10 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
+import com.android.settings.StartupTrace;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public class DashboardSummary extends Fragment {
@@ -50,7 +53,8 @@ public class DashboardSummary extends Fragment {
             switch (msg.what) {
                 case MSG_REBUILD_UI: {
                     final Context context = getActivity();
-                    rebuildUI(context);
+                    final boolean forceRefresh = (msg.arg1 != 0);
+                    rebuildUI(context, forceRefresh);
                 } break;
             }
         }
@@ -59,7 +63,7 @@ public class DashboardSummary extends Fragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            rebuildUI(context);
+            rebuildUI(context, true);
         }
     }
     private HomePackageReceiver mHomePackageReceiver = new HomePackageReceiver();
@@ -68,7 +72,7 @@ public class DashboardSummary extends Fragment {
     public void onResume() {
         super.onResume();
 
-        sendRebuildUI();
+        sendRebuildUI(true);
 
         final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
         filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
@@ -97,27 +101,46 @@ public class DashboardSummary extends Fragment {
         return rootView;
     }
 
-    private void rebuildUI(Context context) {
+    /**
+     * Called by {@link SettingsActivity} when the categories built in the background are
+     * different from the ones shown.
+     */
+    public void onCategoriesChanged() {
+        sendRebuildUI(false);
+    }
+
+    /**
+     * @param forceRefresh true to also have the categories built again in the background.
+     */
+    private void rebuildUI(Context context, boolean forceRefresh) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
         }
 
+        final long traceStart = StartupTrace.begin(StartupTrace.SECTION_DASHBOARD_REBUILD_UI);
         long start = System.currentTimeMillis();
         final Resources res = getResources();
 
-        mDashboard.removeAllViews();
-
         List<DashboardCategory> categories =
-                ((SettingsActivity) context).getDashboardCategories(true);
+                ((SettingsActivity) context).getDashboardCategories(forceRefresh);
 
+        // Reuse the views already in the dashboard, only the tiles that changed are updated
         final int count = categories.size();
+        int updatedTiles = 0;
 
         for (int n = 0; n < count; n++) {
             DashboardCategory category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
+            View categoryView;
+            if (n < mDashboard.getChildCount()) {
+                categoryView = mDashboard.getChildAt(n);
+            } else {
+                categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
+                        false);
+                // Add the category
+                mDashboard.addView(categoryView);
+            }
 
             TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
             categoryLabel.setText(category.getTitle(res));
@@ -125,24 +148,92 @@ public class DashboardSummary extends Fragment {
             ViewGroup categoryContent =
                     (ViewGroup) categoryView.findViewById(R.id.category_content);
 
-            final int tilesCount = category.getTilesCount();
-            for (int i = 0; i < tilesCount; i++) {
-                DashboardTile tile = category.getTile(i);
+            updatedTiles += updateCategoryTiles(context, res, category, categoryContent);
+        }
+
+        final int removedCategories = mDashboard.getChildCount() - count;
+        if (removedCategories > 0) {
+            mDashboard.removeViews(count, removedCategories);
+        }
+
+        long delta = System.currentTimeMillis() - start;
+        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms, updated " + updatedTiles + " tiles");
+        StartupTrace.end(StartupTrace.SECTION_DASHBOARD_REBUILD_UI, traceStart);
+    }
+
+    /**
+     * Show the tiles of a category, reusing the tile views already in the category. A view is
+     * preferably reused for the tile it was showing, identified by its id.
+     *
+     * @return the number of tile views that had to be updated.
+     */
+    private int updateCategoryTiles(Context context, Resources res, DashboardCategory category,
+            ViewGroup categoryContent) {
+        final int childCount = categoryContent.getChildCount();
+        final HashMap<Long, DashboardTileView> viewsById = new HashMap<Long, DashboardTileView>();
+        final ArrayList<DashboardTileView> spareViews = new ArrayList<DashboardTileView>();
+        for (int i = 0; i < childCount; i++) {
+            DashboardTileView tileView = (DashboardTileView) categoryContent.getChildAt(i);
+            DashboardTile tile = tileView.getTile();
+            if (tile != null && tile.id != DashboardTile.TILE_ID_UNDEFINED
+                    && !viewsById.containsKey(tile.id)) {
+                viewsById.put(tile.id, tileView);
+            } else {
+                spareViews.add(tileView);
+            }
+        }
 
-                DashboardTileView tileView = new DashboardTileView(context);
+        final int tilesCount = category.getTilesCount();
+        final DashboardTileView[] tileViews = new DashboardTileView[tilesCount];
+        for (int i = 0; i < tilesCount; i++) {
+            DashboardTile tile = category.getTile(i);
+            if (tile.id != DashboardTile.TILE_ID_UNDEFINED) {
+                tileViews[i] = viewsById.remove(tile.id);
+            }
+        }
+        spareViews.addAll(viewsById.values());
+
+        int updatedTiles = 0;
+        boolean sameOrder = (childCount == tilesCount);
+        for (int i = 0; i < tilesCount; i++) {
+            DashboardTile tile = category.getTile(i);
+
+            DashboardTileView tileView = tileViews[i];
+            if (tileView == null) {
+                tileView = spareViews.isEmpty() ? new DashboardTileView(context)
+                        : spareViews.remove(spareViews.size() - 1);
+                tileViews[i] = tileView;
+            }
+
+            if (!isSameTileContent(tileView.getTile(), tile)) {
                 updateTileView(context, res, tile, tileView.getImageView(),
                         tileView.getTitleTextView(), tileView.getStatusTextView());
+                updatedTiles++;
+            }
+            tileView.setTile(tile);
 
-                tileView.setTile(tile);
+            sameOrder &= (categoryContent.getChildAt(i) == tileView);
+        }
 
-                categoryContent.addView(tileView);
+        if (!sameOrder) {
+            categoryContent.removeAllViews();
+            for (int i = 0; i < tilesCount; i++) {
+                categoryContent.addView(tileViews[i]);
             }
-
-            // Add the category
-            mDashboard.addView(categoryView);
         }
-        long delta = System.currentTimeMillis() - start;
-        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+        return updatedTiles;
+    }
+
+    /**
+     * @return true if the two tiles show the same icon, title and summary.
+     */
+    private static boolean isSameTileContent(DashboardTile oldTile, DashboardTile newTile) {
+        return oldTile != null
+                && oldTile.iconRes == newTile.iconRes
+                && oldTile.titleRes == newTile.titleRes
+                && TextUtils.equals(oldTile.title, newTile.title)
+                && oldTile.summaryRes == newTile.summaryRes
+                && TextUtils.equals(oldTile.summary, newTile.summary);
     }
 
     private void updateTileView(Context context, Resources res, DashboardTile tile,
@@ -166,9 +257,13 @@ public class DashboardSummary extends Fragment {
         }
     }
 
-    private void sendRebuildUI() {
-        if (!mHandler.hasMessages(MSG_REBUILD_UI)) {
-            mHandler.sendEmptyMessage(MSG_REBUILD_UI);
+    private void sendRebuildUI(boolean forceRefresh) {
+        if (forceRefresh) {
+            // A refresh must not be lost behind a pending rebuild that does not refresh
+            mHandler.removeMessages(MSG_REBUILD_UI);
+        } else if (mHandler.hasMessages(MSG_REBUILD_UI)) {
+            return;
         }
+        mHandler.obtainMessage(MSG_REBUILD_UI, forceRefresh ? 1 : 0, 0).sendToTarget();
     }
 }
@@ -71,6 +71,10 @@ public class DashboardTileView extends FrameLayout implements View.OnClickListen
         return mImageView;
     }
 
+    public DashboardTile getTile() {
+        return mTile;
+    }
+
     public void setTile(DashboardTile tile) {
         mTile = tile;
     }
@@ -26,6 +26,9 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -43,6 +46,8 @@ import com.android.settings.Utils;
 import com.android.settings.search.Index;
 
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class SearchResultsSummary extends Fragment {
 
@@ -70,43 +75,114 @@ public class SearchResultsSummary extends Fragment {
 
     private boolean mShowResults;
 
+    // Search queries have their own thread, so that they are not queued behind the other
+    // AsyncTasks (like the ones updating the Index)
+    private static final Executor SEARCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler();
+
+    // Delay for coalescing the keystrokes before running a search query
+    private int mSearchDebounceDelay;
+
+    // Incremented for each new query: only the cursor of the latest one is delivered
+    private int mQueryGeneration;
+
+    private final Runnable mUpdateSearchResultsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateSearchResults();
+        }
+    };
+
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A basic AsyncTask for running a query on the Index. The query is run on the background
+     * thread and can be canceled while it is running.
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private abstract class QueryTask extends AsyncTask<String, Void, Cursor> {
+        private final Index mIndex;
+        private final int mGeneration;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public QueryTask() {
+            mIndex = Index.getInstance(getActivity());
+            mGeneration = mQueryGeneration;
+        }
+
+        protected abstract Cursor query(Index index, String query,
+                CancellationSignal cancellationSignal);
+
+        protected abstract void deliverCursor(Cursor cursor);
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+            Cursor cursor = null;
+            try {
+                cursor = query(mIndex, params[0], mCancellationSignal);
+                // Fill the cursor window now instead of on the UI thread
+                cursor.getCount();
+                return cursor;
+            } catch (OperationCanceledException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
+            if (cursor == null) {
+                return;
+            }
+            if (!isCancelled() && mGeneration == mQueryGeneration) {
+                deliverCursor(cursor);
+            } else {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
     }
 
+    /**
+     * A basic AsyncTask for updating the query results cursor
+     */
+    private class UpdateSearchResultsTask extends QueryTask {
+        @Override
+        protected Cursor query(Index index, String query, CancellationSignal cancellationSignal) {
+            return index.search(query, cancellationSignal);
+        }
+
+        @Override
+        protected void deliverCursor(Cursor cursor) {
+            setResultsCursor(cursor);
+            setResultsVisibility(cursor.getCount() > 0);
+        }
+    }
+
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSuggestionsTask extends QueryTask {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        protected Cursor query(Index index, String query, CancellationSignal cancellationSignal) {
+            return index.getSuggestions(query, cancellationSignal);
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setSuggestionsCursor(cursor);
-                setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        protected void deliverCursor(Cursor cursor) {
+            setSuggestionsCursor(cursor);
+            setSuggestionsVisibility(cursor.getCount() > 0);
         }
     }
 
@@ -117,6 +193,8 @@ public class SearchResultsSummary extends Fragment {
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
+        mSearchDebounceDelay = getResources().getInteger(R.integer.config_search_debounce_delay_ms);
+
         if (savedInstanceState != null) {
             mShowResults = savedInstanceState.getBoolean(SAVE_KEY_SHOW_RESULTS);
         }
@@ -294,7 +372,7 @@ public class SearchResultsSummary extends Fragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            scheduleSearchResults();
         }
 
         return true;
@@ -308,7 +386,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearSuggestions() {
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -325,8 +403,9 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearResults() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         setResultsCursor(null);
@@ -358,12 +437,15 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
+        // Any cursor still to come is now outdated
+        mQueryGeneration++;
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
     }
@@ -374,7 +456,21 @@ public class SearchResultsSummary extends Fragment {
             setSuggestionsCursor(null);
         } else {
             mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mUpdateSuggestionsTask.executeOnExecutor(SEARCH_EXECUTOR, mQuery);
+        }
+    }
+
+    /**
+     * Update the search results once no other keystroke has been received for
+     * {@link #mSearchDebounceDelay} milliseconds.
+     */
+    private void scheduleSearchResults() {
+        clearAllTasks();
+        if (TextUtils.isEmpty(mQuery)) {
+            setResultsVisibility(false);
+            setResultsCursor(null);
+        } else {
+            mHandler.postDelayed(mUpdateSearchResultsRunnable, mSearchDebounceDelay);
         }
     }
 
@@ -385,7 +481,7 @@ public class SearchResultsSummary extends Fragment {
             setResultsCursor(null);
         } else {
             mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mUpdateSearchResultsTask.executeOnExecutor(SEARCH_EXECUTOR, mQuery);
         }
     }
 
@@ -18,13 +18,14 @@ package com.android.settings.fuelgauge;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.TimeUtils;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -205,7 +206,7 @@ public class BatteryHistoryChart extends View {
     int mLevelLeft;
     int mLevelRight;
 
-    int mNumHist;
+    final BatteryHistoryParser mHistory = new BatteryHistoryParser();
     long mHistStart;
     long mHistDataEnd;
     long mHistEnd;
@@ -222,8 +223,20 @@ public class BatteryHistoryChart extends View {
     final ArrayList<TimeLabel> mTimeLabels = new ArrayList<TimeLabel>();
     final ArrayList<DateLabel> mDateLabels = new ArrayList<DateLabel>();
 
+    // Static layers of the chart, drawn again only when the size or the data changes
     Bitmap mBitmap;
     Canvas mCanvas;
+    int mBitmapGeneration = -1;
+    boolean mBitmapRtl;
+
+    // Incremented each time the paths have been built again
+    int mDataGeneration;
+    long mRemainingTimeUs;
+    // The history must be read again before building the chart
+    boolean mNeedParse;
+    BuildChartTask mBuildTask;
+    // The paths and labels are being built in the background and must not be drawn
+    boolean mBuilding;
 
     static class TextAttrs {
         ColorStateList textColor = null;
@@ -539,73 +552,40 @@ public class BatteryHistoryChart extends View {
         mDrainString = "";
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
+        mRemainingTimeUs = remainingTimeUs;
+        mNeedParse = true;
+        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
+            mHavePhoneSignal = true;
+        }
+
+        if (mLastWidth > 0 && mLastHeight > 0) {
+            // Already laid out, so the size won't change to build the chart again
+            buildChart(mLastWidth, mLastHeight);
+        }
+    }
+
+    /**
+     * Read the history, and find its time span and which states it contains. Called on
+     * the background thread building the chart.
+     */
+    void parseHistory(BatteryStats stats) {
+        final long remainingTimeUs = mRemainingTimeUs;
+        final BatteryHistoryParser history = mHistory;
+        history.parse(stats);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
+        mHistStart = history.mHistStart;
+        mHistDataEnd = history.mHistDataEnd;
+        mStartWallTime = history.mStartWallTime;
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
+        mEndDataWallTime = history.mLastWallTime + mHistDataEnd - history.mLastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+        mHaveGps = (history.mAggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (history.mAggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                || (history.mAggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                         |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                         |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
-        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
-            mHavePhoneSignal = true;
-        }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
     }
 
@@ -711,9 +691,83 @@ public class BatteryHistoryChart extends View {
 
         mLastWidth = w;
         mLastHeight = h;
+
+        buildChart(w, h);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // The chart is kept by the preference to be attached again; only drop the bitmap
         mBitmap = null;
         mCanvas = null;
+    }
+
+    /**
+     * Parse the history and build the paths and labels for the given size on a
+     * background thread. Until it is done, only the header is drawn, along with the
+     * previous chart if it has the same size.
+     */
+    void buildChart(int w, int h) {
+        if (mStats == null) {
+            return;
+        }
+        boolean parse = mNeedParse;
+        if (mBuildTask != null) {
+            // The history may not have been read yet by the cancelled task
+            parse |= mBuildTask.mParse;
+            mBuildTask.cancel(false);
+        }
+        mNeedParse = false;
+        mBuilding = true;
+        // Serial executor: a previous task still reading the history finishes first
+        mBuildTask = new BuildChartTask(mStats, parse, w, h);
+        mBuildTask.execute();
+    }
+
+    private class BuildChartTask extends AsyncTask<Void, Void, Void> {
+        private final BatteryStats mTaskStats;
+        final boolean mParse;
+        private final int mWidth;
+        private final int mHeight;
+
+        BuildChartTask(BatteryStats stats, boolean parse, int width, int height) {
+            mTaskStats = stats;
+            mParse = parse;
+            mWidth = width;
+            mHeight = height;
+        }
 
+        @Override
+        protected Void doInBackground(Void... params) {
+            final long start = SystemClock.uptimeMillis();
+            if (mParse) {
+                parseHistory(mTaskStats);
+            }
+            buildPaths(mWidth, mHeight);
+            if (DEBUG) Log.d(TAG, "Built chart in " + (SystemClock.uptimeMillis() - start)
+                    + "ms");
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (mBuildTask != this) {
+                return;
+            }
+            mBuildTask = null;
+            mBuilding = false;
+            mDataGeneration++;
+            invalidate();
+        }
+    }
+
+    /**
+     * Build the paths and labels of the chart for the given size from the parsed
+     * history. Only the last record of each horizontal pixel is drawn.
+     */
+    void buildPaths(int w, int h) {
         int textHeight = mTextDescent - mTextAscent;
         if (h > ((textHeight*10)+mChartMinHeight)) {
             mLargeMode = true;
@@ -796,197 +850,206 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
-                    }
-                    if (false) {
-                        StringBuilder sb = new StringBuilder(128);
-                        sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
-                        sb.append(" wallchange=");
-                        TimeUtils.formatDuration(walltimeChange, sb);
-                        sb.append(" x=");
-                        sb.append(x);
-                        Log.d("foo", sb.toString());
-                    }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
-                            }
 
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
+        // Last record of the pixel at x, drawn once a record reaches another pixel.
+        boolean pending = false;
+        byte pendingLevel = 0;
+        int pendingStates = 0, pendingStates2 = 0;
+
+        final BatteryHistoryParser history = mHistory;
+        final int N = mEndDataWallTime > mStartWallTime ? history.mNumDataEvents : 0;
+        for (int i = 0; i <= N; i++) {
+            final boolean delta = i < N && history.isDeltaData(i);
+            int nextX = x;
+            if (delta) {
+                curWalltime += history.mTimes[i]-lastRealtime;
+                lastRealtime = history.mTimes[i];
+                nextX = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
+                if (nextX < 0) {
+                    nextX = 0;
+                }
+                if (pending && nextX == x) {
+                    // Same pixel, a later record replaces the pending one.
+                    pendingLevel = history.mLevels[i];
+                    pendingStates = history.mStates[i];
+                    pendingStates2 = history.mStates2[i];
+                    continue;
+                }
+            }
 
-                    if (mLargeMode) {
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
+            if (pending) {
+                pending = false;
+                y = mLevelTop + levelh - ((pendingLevel-batLow)*(levelh-1))/batChange;
+
+                if (lastX != x) {
+                    // We have moved by at least a pixel.
+                    if (lastY != y) {
+                        // Don't plot changes within a pixel.
+                        Path path;
+                        byte value = pendingLevel;
+                        if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                        else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                        else path = null; //mBatGoodPath;
+
+                        if (path != lastLinePath) {
+                            if (lastLinePath != null) {
+                                lastLinePath.lineTo(x, y);
                             }
-                            lastCharging = charging;
-                        }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                            if (path != null) {
+                                path.moveTo(x, y);
                             }
-                            lastScreenOn = screenOn;
+                            lastLinePath = path;
+                        } else if (path != null) {
+                            path.lineTo(x, y);
                         }
 
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
+                        if (curLevelPath == null) {
+                            curLevelPath = mBatLevelPath;
+                            curLevelPath.moveTo(x, y);
+                            startX = x;
+                        } else {
+                            curLevelPath.lineTo(x, y);
                         }
+                        lastX = x;
+                        lastY = y;
+                    }
+                }
 
-                        final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
-                                    >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
-                        boolean wifiRunning;
-                        if (lastWifiSupplState != wifiSupplState) {
-                            lastWifiSupplState = wifiSupplState;
-                            switch (wifiSupplState) {
-                                case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
-                                case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
-                                case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
-                                case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
-                                case BatteryStats.WIFI_SUPPL_STATE_INVALID:
-                                case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
-                                    wifiRunning = lastWifiSupplRunning = false;
-                                    break;
-                                default:
-                                    wifiRunning = lastWifiSupplRunning = true;
-                                    break;
-                            }
+                if (mLargeMode) {
+                    final boolean charging =
+                        (pendingStates&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                    if (charging != lastCharging) {
+                        if (charging) {
+                            mChargingPath.moveTo(x, h-mChargingOffset);
                         } else {
-                            wifiRunning = lastWifiSupplRunning;
+                            mChargingPath.lineTo(x, h-mChargingOffset);
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                                |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                                |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
-                            wifiRunning = true;
-                        }
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
+                        lastCharging = charging;
+                    }
+
+                    final boolean screenOn =
+                        (pendingStates&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                    if (screenOn != lastScreenOn) {
+                        if (screenOn) {
+                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                        } else {
+                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
                         }
+                        lastScreenOn = screenOn;
+                    }
 
-                        final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
-                        if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
-                            lastCpuRunning = cpuRunning;
+                    final boolean gpsOn =
+                        (pendingStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                    if (gpsOn != lastGpsOn) {
+                        if (gpsOn) {
+                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                        } else {
+                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
                         }
+                        lastGpsOn = gpsOn;
+                    }
 
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
+                    final int wifiSupplState =
+                        ((pendingStates2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                                >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
+                    boolean wifiRunning;
+                    if (lastWifiSupplState != wifiSupplState) {
+                        lastWifiSupplState = wifiSupplState;
+                        switch (wifiSupplState) {
+                            case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
+                            case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
+                            case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
+                            case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
+                            case BatteryStats.WIFI_SUPPL_STATE_INVALID:
+                            case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
+                                wifiRunning = lastWifiSupplRunning = false;
+                                break;
+                            default:
+                                wifiRunning = lastWifiSupplRunning = true;
+                                break;
+                        }
+                    } else {
+                        wifiRunning = lastWifiSupplRunning;
+                    }
+                    if ((pendingStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                            |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                            |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
+                        wifiRunning = true;
+                    }
+                    if (wifiRunning != lastWifiRunning) {
+                        if (wifiRunning) {
+                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                        } else {
+                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
                         }
+                        lastWifiRunning = wifiRunning;
                     }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    final boolean cpuRunning =
+                        (pendingStates&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                    if (cpuRunning != lastCpuRunning) {
+                        if (cpuRunning) {
+                            mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
                         }
-                        lastRealtime = rec.time;
+                        lastCpuRunning = cpuRunning;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
+                    if (mLargeMode && mHavePhoneSignal) {
+                        int bin;
+                        if (((pendingStates&HistoryItem.STATE_PHONE_STATE_MASK)
+                                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                                == ServiceState.STATE_POWER_OFF) {
+                            bin = 0;
+                        } else if ((pendingStates&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            bin = 1;
+                        } else {
+                            bin = (pendingStates&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                    >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
+                            bin += 2;
                         }
+                        mPhoneSignalChart.addTick(x, bin);
+                    }
+                }
+            }
+
+            if (delta) {
+                x = nextX;
+                pending = true;
+                pendingLevel = history.mLevels[i];
+                pendingStates = history.mStates[i];
+                pendingStates2 = history.mStates2[i];
+            } else if (i < N) {
+                final byte cmd = history.mCmds[i];
+                long lastWalltime = curWalltime;
+                if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                    if (history.mCurrentTimes[i] >= mStartWallTime) {
+                        curWalltime = history.mCurrentTimes[i];
+                    } else {
+                        curWalltime = mStartWallTime + (history.mTimes[i]-mHistStart);
+                    }
+                    lastRealtime = history.mTimes[i];
+                }
+
+                if (cmd != HistoryItem.CMD_CURRENT_TIME
+                        || Math.abs(lastWalltime-curWalltime) > (60*60*1000)) {
+                    if (curLevelPath != null) {
+                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                                lastCpuRunning, lastLinePath);
+                        lastX = lastY = -1;
+                        curLevelPath = null;
+                        lastLinePath = null;
+                        lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -1129,33 +1192,77 @@ public class BatteryHistoryChart extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        //buildBitmap(width, height);
-
         if (DEBUG) Log.d(TAG, "onDraw: " + width + "x" + height);
-        //canvas.drawBitmap(mBitmap, 0, 0, null);
-        drawChart(canvas, width, height);
+        if (!mBuilding) {
+            buildBitmap(width, height);
+        }
+        // While building, keep showing the previous chart when it still fits
+        if (mBitmap != null && width == mBitmap.getWidth()
+                && height == mBitmap.getHeight()) {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+        }
+        drawOverlays(canvas, width);
     }
 
     void buildBitmap(int width, int height) {
-        if (mBitmap != null && width == mBitmap.getWidth() && height == mBitmap.getHeight()) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        final boolean layoutRtl = isLayoutRtl();
+        final boolean sameSize = mBitmap != null && width == mBitmap.getWidth()
+                && height == mBitmap.getHeight();
+        if (sameSize && mBitmapGeneration == mDataGeneration && mBitmapRtl == layoutRtl) {
             return;
         }
 
         if (DEBUG) Log.d(TAG, "buildBitmap: " + width + "x" + height);
 
-        mBitmap = Bitmap.createBitmap(getResources().getDisplayMetrics(), width, height,
-                Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
+        if (sameSize) {
+            mBitmap.eraseColor(Color.TRANSPARENT);
+        } else {
+            mBitmap = Bitmap.createBitmap(getResources().getDisplayMetrics(), width, height,
+                    Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mBitmap);
+        }
         drawChart(mCanvas, width, height);
+        mBitmapGeneration = mDataGeneration;
+        mBitmapRtl = layoutRtl;
     }
 
-    void drawChart(Canvas canvas, int width, int height) {
+    /**
+     * Draw the header, which is not part of the bitmap.
+     */
+    void drawOverlays(Canvas canvas, int width) {
         final boolean layoutRtl = isLayoutRtl();
         final int textStartX = layoutRtl ? width : 0;
         final int textEndX = layoutRtl ? 0 : width;
         final Paint.Align textAlignLeft = layoutRtl ? Paint.Align.RIGHT : Paint.Align.LEFT;
         final Paint.Align textAlignRight = layoutRtl ? Paint.Align.LEFT : Paint.Align.RIGHT;
 
+        int headerTop = -mHeaderTextAscent + (mHeaderTextDescent-mHeaderTextAscent)/3;
+        mHeaderTextPaint.setTextAlign(textAlignLeft);
+        if (DEBUG) Log.d(TAG, "Drawing charge label string: " + mChargeLabelString);
+        canvas.drawText(mChargeLabelString, textStartX, headerTop, mHeaderTextPaint);
+        int stringHalfWidth = mChargeDurationStringWidth / 2;
+        if (layoutRtl) stringHalfWidth = -stringHalfWidth;
+        int headerCenter = ((width-mChargeDurationStringWidth-mDrainStringWidth)/2)
+                + (layoutRtl ? mDrainStringWidth : mChargeLabelStringWidth);
+        if (DEBUG) Log.d(TAG, "Drawing charge duration string: " + mChargeDurationString);
+        canvas.drawText(mChargeDurationString, headerCenter - stringHalfWidth, headerTop,
+                mHeaderTextPaint);
+        mHeaderTextPaint.setTextAlign(textAlignRight);
+        if (DEBUG) Log.d(TAG, "Drawing drain string: " + mDrainString);
+        canvas.drawText(mDrainString, textEndX, headerTop, mHeaderTextPaint);
+    }
+
+    /**
+     * Draw the static layers of the chart: everything but the header.
+     */
+    void drawChart(Canvas canvas, int width, int height) {
+        final boolean layoutRtl = isLayoutRtl();
+        final int textStartX = layoutRtl ? width : 0;
+        final Paint.Align textAlignLeft = layoutRtl ? Paint.Align.RIGHT : Paint.Align.LEFT;
+
         if (DEBUG) {
             canvas.drawRect(1, 1, width, height, mDebugRectPaint);
         }
@@ -1213,21 +1320,6 @@ public class BatteryHistoryChart extends View {
                     y, mTextPaint);
         }
 
-        int headerTop = -mHeaderTextAscent + (mHeaderTextDescent-mHeaderTextAscent)/3;
-        mHeaderTextPaint.setTextAlign(textAlignLeft);
-        if (DEBUG) Log.d(TAG, "Drawing charge label string: " + mChargeLabelString);
-        canvas.drawText(mChargeLabelString, textStartX, headerTop, mHeaderTextPaint);
-        int stringHalfWidth = mChargeDurationStringWidth / 2;
-        if (layoutRtl) stringHalfWidth = -stringHalfWidth;
-        int headerCenter = ((width-mChargeDurationStringWidth-mDrainStringWidth)/2)
-                + (layoutRtl ? mDrainStringWidth : mChargeLabelStringWidth);
-        if (DEBUG) Log.d(TAG, "Drawing charge duration string: " + mChargeDurationString);
-        canvas.drawText(mChargeDurationString, headerCenter - stringHalfWidth, headerTop,
-                mHeaderTextPaint);
-        mHeaderTextPaint.setTextAlign(textAlignRight);
-        if (DEBUG) Log.d(TAG, "Drawing drain string: " + mDrainString);
-        canvas.drawText(mDrainString, textEndX, headerTop, mHeaderTextPaint);
-
         if (!mBatGoodPath.isEmpty()) {
             if (DEBUG) Log.d(TAG, "Drawing good battery path");
             canvas.drawPath(mBatGoodPath, mBatteryGoodPaint);
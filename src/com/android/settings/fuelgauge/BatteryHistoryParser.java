@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.util.Arrays;
+
+/**
+ * Reads the battery history for {@link BatteryHistoryChart} in a single pass.
+ *
+ * Only the records changing something the chart draws are kept, in primitive arrays: a
+ * delta record with the same level and the same charted states as the previous one is
+ * dropped. The span of the history and the states it contains are found during the same
+ * pass, and the chart can be built again for another size without reading the history.
+ */
+final class BatteryHistoryParser {
+    private static final int INITIAL_CAPACITY = 256;
+
+    // States drawn by the chart, other changes are ignored
+    private static final int CHART_STATES = HistoryItem.STATE_BATTERY_PLUGGED_FLAG
+            | HistoryItem.STATE_SCREEN_ON_FLAG
+            | HistoryItem.STATE_GPS_ON_FLAG
+            | HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+            | HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+            | HistoryItem.STATE_WIFI_SCAN_FLAG
+            | HistoryItem.STATE_CPU_RUNNING_FLAG
+            | HistoryItem.STATE_PHONE_STATE_MASK
+            | HistoryItem.STATE_PHONE_SCANNING_FLAG
+            | HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK;
+    private static final int CHART_STATES2 = HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK;
+
+    // Kept records
+    int mNumEvents;
+    byte[] mCmds = new byte[INITIAL_CAPACITY];
+    long[] mTimes = new long[INITIAL_CAPACITY];
+    // Only set for CMD_CURRENT_TIME and CMD_RESET
+    long[] mCurrentTimes = new long[INITIAL_CAPACITY];
+    byte[] mLevels = new byte[INITIAL_CAPACITY];
+    int[] mStates = new int[INITIAL_CAPACITY];
+    int[] mStates2 = new int[INITIAL_CAPACITY];
+
+    // Number of kept records up to the last delta record
+    int mNumDataEvents;
+
+    long mHistStart;
+    long mHistDataEnd;
+    long mStartWallTime;
+    long mLastWallTime;
+    long mLastRealtime;
+    int mAggrStates;
+    int mAggrStates2;
+
+    private boolean mFirstRecord;
+
+    void parse(BatteryStats stats) {
+        reset();
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                addRecord(rec);
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+    }
+
+    void reset() {
+        mNumEvents = 0;
+        mNumDataEvents = 0;
+        mHistStart = 0;
+        mHistDataEnd = 0;
+        mStartWallTime = 0;
+        mLastWallTime = 0;
+        mLastRealtime = 0;
+        mAggrStates = 0;
+        mAggrStates2 = 0;
+        mFirstRecord = true;
+    }
+
+    /**
+     * Read the next record of the history. The record is copied, the caller can reuse it.
+     */
+    void addRecord(HistoryItem rec) {
+        if (mFirstRecord) {
+            mFirstRecord = false;
+            mHistStart = rec.time;
+        }
+        if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                || rec.cmd == HistoryItem.CMD_RESET) {
+            // If there is a ridiculously large jump in time, then we won't be
+            // able to create a good chart with that data, so just ignore the
+            // times we got before and pretend like our data extends back from
+            // the time we have now.
+            // Also, if we are getting a time change and we are less than 5 minutes
+            // since the start of the history real time, then also use this new
+            // time to compute the base time, since whatever time we had before is
+            // pretty much just noise.
+            if (rec.currentTime > (mLastWallTime+(180*24*60*60*1000L))
+                    || rec.time < (mHistStart+(5*60*1000L))) {
+                mStartWallTime = 0;
+            }
+            mLastWallTime = rec.currentTime;
+            mLastRealtime = rec.time;
+            if (mStartWallTime == 0) {
+                mStartWallTime = mLastWallTime - (mLastRealtime-mHistStart);
+            }
+        }
+        if (rec.isDeltaData()) {
+            mHistDataEnd = rec.time;
+            mAggrStates |= rec.states;
+            mAggrStates2 |= rec.states2;
+            if (!isSameAsLast(rec)) {
+                add(rec);
+            }
+            mNumDataEvents = mNumEvents;
+        } else if (rec.cmd != HistoryItem.CMD_OVERFLOW) {
+            // Overflows neither change the time nor break the chart
+            add(rec);
+        }
+    }
+
+    boolean isDeltaData(int i) {
+        return mCmds[i] == HistoryItem.CMD_UPDATE;
+    }
+
+    private boolean isSameAsLast(HistoryItem rec) {
+        final int last = mNumEvents - 1;
+        return last >= 0 && isDeltaData(last)
+                && mLevels[last] == rec.batteryLevel
+                && mStates[last] == (rec.states & CHART_STATES)
+                && mStates2[last] == (rec.states2 & CHART_STATES2);
+    }
+
+    private void add(HistoryItem rec) {
+        if (mNumEvents == mCmds.length) {
+            final int capacity = mNumEvents * 2;
+            mCmds = Arrays.copyOf(mCmds, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mCurrentTimes = Arrays.copyOf(mCurrentTimes, capacity);
+            mLevels = Arrays.copyOf(mLevels, capacity);
+            mStates = Arrays.copyOf(mStates, capacity);
+            mStates2 = Arrays.copyOf(mStates2, capacity);
+        }
+        final int i = mNumEvents++;
+        mCmds[i] = rec.cmd;
+        mTimes[i] = rec.time;
+        mCurrentTimes[i] = rec.currentTime;
+        mLevels[i] = rec.batteryLevel;
+        mStates[i] = rec.states & CHART_STATES;
+        mStates2[i] = rec.states2 & CHART_STATES2;
+    }
+}
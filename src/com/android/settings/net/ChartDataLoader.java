@@ -18,7 +18,6 @@ package com.android.settings.net;
 
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
-import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
@@ -33,6 +32,15 @@ import android.os.RemoteException;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -41,6 +49,13 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    // Apps with at least this many uids have their histories collected in parallel
+    private static final int PARALLEL_MIN_UIDS = 4;
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    private static ThreadPoolExecutor sExecutor;
+    private static boolean sParallelCollection = true;
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -56,6 +71,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
+    /**
+     * Enable or disable the parallel collection of the histories of apps with many uids, to
+     * compare both modes.
+     */
+    public static void setParallelCollection(boolean enabled) {
+        sParallelCollection = enabled;
+    }
+
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
         super(context);
         mSession = session;
@@ -86,9 +109,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = NetworkStatsCache.getInstance().getHistoryForNetwork(
+                mSession, template, fields);
 
-        if (app != null) {
+        if (app != null && sParallelCollection && app.uids.size() >= PARALLEL_MIN_UIDS) {
+            collectHistoriesInParallel(template, app, data);
+        } else if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
             for (int i = 0; i < size; i++) {
@@ -113,6 +139,112 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return data;
     }
 
+    /**
+     * Collect the histories of all the uids of an app on a bounded pool, then merge them by
+     * pairs, also on the pool, until one history is left for each set.
+     */
+    private void collectHistoriesInParallel(final NetworkTemplate template, AppItem app,
+            ChartData data) throws RemoteException {
+        final ArrayList<Callable<NetworkStatsHistory>> defaultTasks =
+                new ArrayList<Callable<NetworkStatsHistory>>();
+        final ArrayList<Callable<NetworkStatsHistory>> foregroundTasks =
+                new ArrayList<Callable<NetworkStatsHistory>>();
+        for (int i = 0; i < app.uids.size(); i++) {
+            final int uid = app.uids.keyAt(i);
+            defaultTasks.add(new Callable<NetworkStatsHistory>() {
+                @Override
+                public NetworkStatsHistory call() throws RemoteException {
+                    return NetworkStatsCache.getInstance().getHistoryForUid(mSession,
+                            template, uid, SET_DEFAULT, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                }
+            });
+            foregroundTasks.add(new Callable<NetworkStatsHistory>() {
+                @Override
+                public NetworkStatsHistory call() throws RemoteException {
+                    return NetworkStatsCache.getInstance().getHistoryForUid(mSession,
+                            template, uid, SET_FOREGROUND, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                }
+            });
+        }
+
+        final ArrayList<Callable<NetworkStatsHistory>> tasks =
+                new ArrayList<Callable<NetworkStatsHistory>>(defaultTasks);
+        tasks.addAll(foregroundTasks);
+        final List<NetworkStatsHistory> histories = invokeAll(tasks);
+        final int count = defaultTasks.size();
+        data.detailDefault = mergeHistories(histories.subList(0, count));
+        data.detailForeground = mergeHistories(histories.subList(count, histories.size()));
+
+        data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
+        data.detail.recordEntireHistory(data.detailDefault);
+        data.detail.recordEntireHistory(data.detailForeground);
+    }
+
+    /**
+     * Merge at least two histories as a tree: each level merges the histories by pairs in
+     * parallel. The histories given are shared by the cache and are never modified.
+     */
+    private static NetworkStatsHistory mergeHistories(List<NetworkStatsHistory> histories)
+            throws RemoteException {
+        List<NetworkStatsHistory> level = histories;
+        while (level.size() > 1) {
+            final ArrayList<Callable<NetworkStatsHistory>> merges =
+                    new ArrayList<Callable<NetworkStatsHistory>>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                final NetworkStatsHistory first = level.get(i);
+                final NetworkStatsHistory second = (i + 1 < level.size())
+                        ? level.get(i + 1) : null;
+                merges.add(new Callable<NetworkStatsHistory>() {
+                    @Override
+                    public NetworkStatsHistory call() {
+                        final NetworkStatsHistory merged =
+                                new NetworkStatsHistory(first.getBucketDuration());
+                        merged.recordEntireHistory(first);
+                        if (second != null) {
+                            merged.recordEntireHistory(second);
+                        }
+                        return merged;
+                    }
+                });
+            }
+            level = invokeAll(merges);
+        }
+        return level.get(0);
+    }
+
+    private static List<NetworkStatsHistory> invokeAll(
+            List<Callable<NetworkStatsHistory>> tasks) throws RemoteException {
+        final ArrayList<NetworkStatsHistory> results =
+                new ArrayList<NetworkStatsHistory>(tasks.size());
+        try {
+            for (Future<NetworkStatsHistory> future : getExecutor().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while reading network stats", e);
+        }
+        return results;
+    }
+
+    private static ThreadPoolExecutor getExecutor() {
+        synchronized (ChartDataLoader.class) {
+            if (sExecutor == null) {
+                final int threads = Math.min(MAX_PARALLEL_REQUESTS,
+                        Math.max(2, Runtime.getRuntime().availableProcessors()));
+                sExecutor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>());
+                sExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sExecutor;
+        }
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
@@ -132,14 +264,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private NetworkStatsHistory collectHistoryForUid(
             NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final NetworkStatsHistory history = NetworkStatsCache.getInstance().getHistoryForUid(
+                mSession, template, uid, set, FIELD_RX_BYTES | FIELD_TX_BYTES);
+
+        if (existing == null) {
+            // The cached history is shared, combine the other uids into a copy
+            existing = new NetworkStatsHistory(history.getBucketDuration());
         }
+        existing.recordEntireHistory(history);
+        return existing;
     }
 }
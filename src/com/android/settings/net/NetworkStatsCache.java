@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * In-process cache of the {@link NetworkStatsHistory} and {@link NetworkStats} summaries read
+ * by the data usage loaders, so that switching between networks, cycles and apps does not
+ * read the same stats again.
+ *
+ * The stats only change when the stats service polls, so the cache is cleared after
+ * {@link android.net.INetworkStatsService#forceUpdate()}. Entries also expire after a while,
+ * to pick up the polls done by the service on its own.
+ *
+ * The returned objects are shared and must not be modified.
+ */
+public class NetworkStatsCache {
+    private static final long MAX_AGE = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final int TYPE_NETWORK_HISTORY = 0;
+    private static final int TYPE_UID_HISTORY = 1;
+    private static final int TYPE_SUMMARY_FOR_ALL_UID = 2;
+
+    private static NetworkStatsCache sInstance;
+
+    private final HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+
+    private static final class Key {
+        final int type;
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+        final long start;
+        final long end;
+
+        Key(int type, NetworkTemplate template, int uid, int set, int fields, long start,
+                long end) {
+            this.type = type;
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return type == other.type && uid == other.uid && set == other.set
+                    && fields == other.fields && start == other.start && end == other.end
+                    && Objects.equals(template, other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, template, uid, set, fields, start, end);
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long time;
+
+        Entry(Object value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    public static NetworkStatsCache getInstance() {
+        synchronized (NetworkStatsCache.class) {
+            if (sInstance == null) {
+                sInstance = new NetworkStatsCache();
+            }
+            return sInstance;
+        }
+    }
+
+    private NetworkStatsCache() {
+    }
+
+    /**
+     * @see INetworkStatsSession#getHistoryForNetwork(NetworkTemplate, int)
+     */
+    public NetworkStatsHistory getHistoryForNetwork(INetworkStatsSession session,
+            NetworkTemplate template, int fields) throws RemoteException {
+        final Key key = new Key(TYPE_NETWORK_HISTORY, template, 0, 0, fields, 0, 0);
+        NetworkStatsHistory history = (NetworkStatsHistory) get(key);
+        if (history == null) {
+            history = session.getHistoryForNetwork(template, fields);
+            put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * @see INetworkStatsSession#getHistoryForUid(NetworkTemplate, int, int, int, int)
+     */
+    public NetworkStatsHistory getHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set, int fields) throws RemoteException {
+        final Key key = new Key(TYPE_UID_HISTORY, template, uid, set, fields, 0, 0);
+        NetworkStatsHistory history = (NetworkStatsHistory) get(key);
+        if (history == null) {
+            history = session.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            put(key, history);
+        }
+        return history;
+    }
+
+    /**
+     * @see INetworkStatsSession#getSummaryForAllUid(NetworkTemplate, long, long, boolean)
+     */
+    public NetworkStats getSummaryForAllUid(INetworkStatsSession session,
+            NetworkTemplate template, long start, long end) throws RemoteException {
+        final Key key = new Key(TYPE_SUMMARY_FOR_ALL_UID, template, 0, 0, 0, start, end);
+        NetworkStats stats = (NetworkStats) get(key);
+        if (stats == null) {
+            stats = session.getSummaryForAllUid(template, start, end, false);
+            put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Forget all the stats, after the stats service has polled.
+     */
+    public void invalidate() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    private Object get(Key key) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - entry.time > MAX_AGE) {
+                mEntries.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    private void put(Key key, Object value) {
+        if (value == null) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mEntries) {
+            // Drop the expired entries, so that the stats of old cycles do not pile up
+            final Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().time > MAX_AGE) {
+                    it.remove();
+                }
+            }
+            mEntries.put(key, new Entry(value, now));
+        }
+    }
+}
@@ -59,7 +59,8 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long end = mArgs.getLong(KEY_END);
 
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            return NetworkStatsCache.getInstance().getSummaryForAllUid(
+                    mSession, template, start, end);
         } catch (RemoteException e) {
             return null;
         }
@@ -37,6 +37,7 @@ import android.util.SparseArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppIconCache;
 
 /**
  * Return details about a specific UID, handling special cases like
@@ -105,6 +106,8 @@ public class UidDetailProvider {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
+        final AppIconCache iconCache = AppIconCache.getInstance(mContext);
+
         final UidDetail detail = new UidDetail();
         detail.label = pm.getNameForUid(uid);
         detail.icon = pm.getDefaultActivityIcon();
@@ -161,7 +164,7 @@ public class UidDetailProvider {
                         0 /* no flags */, userId);
                 if (info != null) {
                     detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
+                    detail.icon = um.getBadgedIconForUser(iconCache.loadIcon(info),
                             new UserHandle(userId));
                 }
             } else if (length > 1) {
@@ -180,7 +183,8 @@ public class UidDetailProvider {
                         if (packageInfo.sharedUserLabel != 0) {
                             detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                     packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
+                            detail.icon = um.getBadgedIconForUser(iconCache.loadIcon(appInfo),
+                                    userHandle);
                         }
                     }
                 }
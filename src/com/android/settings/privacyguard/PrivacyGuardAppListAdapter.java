@@ -17,9 +17,7 @@
 package com.android.settings.privacyguard;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,21 +27,20 @@ import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.android.settings.R;
+import com.android.settings.applications.AppIconCache;
 import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIndexer {
 
     private LayoutInflater mInflater;
-    private PackageManager mPm;
 
     private List<AppInfo> mApps;
     private String[] mSections;
     private int[] mPositions;
-    private ConcurrentHashMap<String, Drawable> mIcons;
+    private AppIconCache mIconCache;
     private Drawable mDefaultImg;
 
     private Context mContext;
@@ -53,7 +50,6 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
             List<String> sections, List<Integer> positions) {
         mContext = context;
         mInflater = LayoutInflater.from(mContext);
-        mPm = context.getPackageManager();
 
         mApps = apps;
         mSections = sections.toArray(new String[sections.size()]);
@@ -62,11 +58,9 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
             mPositions[i] = positions.get(i);
         }
 
-        // set the default icon till the actual app icon is loaded in async task
+        // set the default icon till the actual app icon is loaded by the icon cache
         mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-        mIcons = new ConcurrentHashMap<String, Drawable>();
-
-        new LoadIconsTask().execute(apps.toArray(new PrivacyGuardManager.AppInfo[]{}));
+        mIconCache = AppIconCache.getInstance(mContext);
     }
 
     @Override
@@ -105,7 +99,10 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
 
         appHolder.title.setText(app.title);
 
-        Drawable icon = mIcons.get(app.packageName);
+        Drawable icon = mIconCache.getCachedIcon(app.packageName);
+        if (icon == null) {
+            mIconCache.requestIcon(app.packageName, mIconCallback);
+        }
         appHolder.icon.setImageDrawable(icon != null ? icon : mDefaultImg);
 
         int privacyGuardDrawableResId = app.privacyGuardEnabled
@@ -149,30 +146,12 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
         return mSections;
     }
 
-    /**
-     * An asynchronous task to load the icons of the installed applications.
-     */
-    private class LoadIconsTask extends AsyncTask<PrivacyGuardManager.AppInfo, Void, Void> {
-        @Override
-        protected Void doInBackground(PrivacyGuardManager.AppInfo... apps) {
-            for (PrivacyGuardManager.AppInfo app : apps) {
-                try {
-                    Drawable icon = mPm.getApplicationIcon(app.packageName);
-                    mIcons.put(app.packageName, icon);
-                    publishProgress();
-                } catch (PackageManager.NameNotFoundException e) {
-                    // ignored; app will show up with default image
-                }
-            }
-
-            return null;
-        }
-
+    private final AppIconCache.Callback mIconCallback = new AppIconCache.Callback() {
         @Override
-        protected void onProgressUpdate(Void... progress) {
+        public void onIconLoaded(String packageName, Drawable icon) {
             notifyDataSetChanged();
         }
-    }
+    };
 
     /**
      * App view holder used to reuse the views inside the list.
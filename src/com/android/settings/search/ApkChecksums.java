@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The CRC-32 of the content of an apk that the indexed data is built from: the resource
+ * table, the XML resources and the code.
+ *
+ * They are read from the central directory of the apk, so nothing is inflated. Unlike the
+ * version code and the update time of a system package, they change with every build that
+ * changes the content, and they are the same on every device running the same apk.
+ */
+final class ApkChecksums {
+    private static final String TAG = "ApkChecksums";
+
+    private static final String RESOURCE_TABLE = "resources.arsc";
+    private static final String XML_RESOURCES_PREFIX = "res/xml";
+    private static final String CODE_PREFIX = "classes";
+    private static final String CODE_SUFFIX = ".dex";
+
+    final long resourceTableCrc;
+    final long codeCrc;
+    private final Map<String, Long> mXmlResourceCrcs;
+
+    private ApkChecksums(long resourceTableCrc, long codeCrc,
+            Map<String, Long> xmlResourceCrcs) {
+        this.resourceTableCrc = resourceTableCrc;
+        this.codeCrc = codeCrc;
+        mXmlResourceCrcs = xmlResourceCrcs;
+    }
+
+    /**
+     * @return the CRC of an XML resource given its path in the apk, or 0 if it is unknown.
+     */
+    long getXmlResourceCrc(String path) {
+        final Long crc = (path != null) ? mXmlResourceCrcs.get(path) : null;
+        return (crc != null) ? crc : 0;
+    }
+
+    /**
+     * @return the checksums of the apk, or null if it cannot be read.
+     */
+    static ApkChecksums read(String apkPath) {
+        if (apkPath == null) {
+            return null;
+        }
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(apkPath);
+            long resourceTableCrc = 0;
+            long codeCrc = 0;
+            final Map<String, Long> xmlResourceCrcs = new HashMap<String, Long>();
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (RESOURCE_TABLE.equals(name)) {
+                    resourceTableCrc = entry.getCrc();
+                } else if (name.startsWith(XML_RESOURCES_PREFIX)) {
+                    xmlResourceCrcs.put(name, entry.getCrc());
+                } else if (name.startsWith(CODE_PREFIX) && name.endsWith(CODE_SUFFIX)) {
+                    // Several dex files are combined whatever the order of the entries
+                    codeCrc += entry.getCrc();
+                }
+            }
+            return new ApkChecksums(resourceTableCrc, codeCrc, xmlResourceCrcs);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read apk: " + apkPath, e);
+            return null;
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.print.PrintManager;
 import android.printservice.PrintService;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -43,20 +44,36 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener {
 
+    private static final String TAG = "DynamicIndexableContentMonitor";
+    private static final boolean DEBUG = false;
+
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
 
+    // Index updates requested within this delay are merged into one single update
+    private static final long DELAY_UPDATE_INDEX = 500;
+
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_UPDATE_INDEX = 3;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Class names waiting to be updated, mapped to true if they have to be rebuilt
+    private final Map<String, Boolean> mPendingUpdates = new HashMap<String, Boolean>();
+
+    // Number of Index updates requested, and number of updates really run on the Index
+    private int mRequestedUpdateCount;
+    private int mExecutedUpdateCount;
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -70,6 +87,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_UPDATE_INDEX: {
+                    handleUpdateIndex();
+                } break;
             }
         }
     };
@@ -180,6 +201,12 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         mAccessibilityServices.clear();
         mPrintServices.clear();
         mImeServices.clear();
+
+        // Do not lose the updates already requested
+        if (mHandler.hasMessages(MSG_UPDATE_INDEX)) {
+            mHandler.removeMessages(MSG_UPDATE_INDEX);
+            handleUpdateIndex();
+        }
     }
 
     // Covers installed, appeared external storage with the package, upgraded.
@@ -210,8 +237,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        scheduleUpdateIndex(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -221,8 +247,35 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        scheduleUpdateIndex(InputMethodAndLanguageSettings.class.getName(), true);
+    }
+
+    /**
+     * Schedule an update of the Index for a class name. The updates requested within
+     * {@link #DELAY_UPDATE_INDEX} are merged, so that a bulk of package changes only runs one
+     * Index update.
+     */
+    private void scheduleUpdateIndex(String className, boolean rebuild) {
+        mRequestedUpdateCount++;
+        final Boolean pendingRebuild = mPendingUpdates.get(className);
+        mPendingUpdates.put(className, rebuild || (pendingRebuild != null && pendingRebuild));
+        if (!mHandler.hasMessages(MSG_UPDATE_INDEX)) {
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_INDEX, DELAY_UPDATE_INDEX);
+        }
+    }
+
+    private void handleUpdateIndex() {
+        if (mPendingUpdates.isEmpty()) {
+            return;
+        }
+        mExecutedUpdateCount++;
+        Index.getInstance(mContext).updateFromClassNameResources(
+                new HashMap<String, Boolean>(mPendingUpdates), true);
+        mPendingUpdates.clear();
+        if (DEBUG) {
+            Log.d(TAG, "Index updates requested: " + mRequestedUpdateCount + ", executed: " +
+                    mExecutedUpdateCount);
+        }
     }
 
     private void postMessage(int what, String packageName) {
@@ -235,8 +288,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                scheduleUpdateIndex(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -245,8 +297,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 final Intent intent = getPrintServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    scheduleUpdateIndex(PrintSettingsFragment.class.getName(), false);
                 }
             }
         }
@@ -256,8 +307,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Intent intent = getIMEServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    scheduleUpdateIndex(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -267,16 +317,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            scheduleUpdateIndex(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                scheduleUpdateIndex(PrintSettingsFragment.class.getName(), true);
             }
         }
 
@@ -284,8 +332,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                scheduleUpdateIndex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -299,8 +346,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                scheduleUpdateIndex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
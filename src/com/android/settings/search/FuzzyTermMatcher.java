@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the terms that start with a query within a bounded number of edits (insertions,
+ * deletions or substitutions).
+ *
+ * Candidates are found with a bigram index: every edit changes at most two bigrams of the
+ * query, so a term can only match if it shares enough bigrams with it. The edit distance is
+ * then only computed for those candidates.
+ */
+final class FuzzyTermMatcher {
+
+    // Marks the start of a term, so that the first letter counts as much as the others
+    private static final char START_OF_TERM = '^';
+
+    private final String[] mTerms;
+    private final int[][] mTermRows;
+    private final HashMap<String, int[]> mBigramTerms;
+
+    /**
+     * @param termRows the rows of each term. Terms must already be normalized.
+     */
+    FuzzyTermMatcher(Map<String, Set<Integer>> termRows) {
+        final int termCount = termRows.size();
+        mTerms = new String[termCount];
+        mTermRows = new int[termCount][];
+
+        final HashMap<String, List<Integer>> bigramTerms = new HashMap<String, List<Integer>>();
+        final Set<String> bigrams = new HashSet<String>();
+        int termId = 0;
+        for (Map.Entry<String, Set<Integer>> entry : termRows.entrySet()) {
+            final String term = entry.getKey();
+            mTerms[termId] = term;
+
+            final Set<Integer> rows = entry.getValue();
+            final int[] rowArray = new int[rows.size()];
+            int n = 0;
+            for (Integer row : rows) {
+                rowArray[n++] = row;
+            }
+            mTermRows[termId] = rowArray;
+
+            bigrams.clear();
+            getBigrams(term, bigrams);
+            for (String bigram : bigrams) {
+                List<Integer> terms = bigramTerms.get(bigram);
+                if (terms == null) {
+                    terms = new ArrayList<Integer>();
+                    bigramTerms.put(bigram, terms);
+                }
+                terms.add(termId);
+            }
+            termId++;
+        }
+
+        mBigramTerms = new HashMap<String, int[]>(bigramTerms.size());
+        for (Map.Entry<String, List<Integer>> entry : bigramTerms.entrySet()) {
+            final List<Integer> terms = entry.getValue();
+            final int size = terms.size();
+            final int[] termArray = new int[size];
+            for (int n = 0; n < size; n++) {
+                termArray[n] = terms.get(n);
+            }
+            mBigramTerms.put(entry.getKey(), termArray);
+        }
+    }
+
+    /**
+     * @return the rough memory cost in bytes of the structures of this matcher.
+     */
+    long getEstimatedSize() {
+        long size = 0;
+        final int termCount = mTerms.length;
+        for (int n = 0; n < termCount; n++) {
+            size += 32 + 2 * mTerms[n].length() + 16 + 4 * mTermRows[n].length;
+        }
+        for (int[] terms : mBigramTerms.values()) {
+            size += 48 + 16 + 4 * terms.length;
+        }
+        return size;
+    }
+
+    /**
+     * Find the rows having a term starting with the query within maxDistance edits.
+     *
+     * @param query the normalized query.
+     * @param deadlineNanos the {@link System#nanoTime()} after which the candidates that have
+     *                      not been checked yet are ignored.
+     * @param outDistances filled with the smallest distance found for each row. Rows must be
+     *                     initialized to -1.
+     * @return the number of rows found.
+     */
+    int match(String query, int maxDistance, long deadlineNanos, int[] outDistances) {
+        final int termCount = mTerms.length;
+        final int[] sharedBigrams = new int[termCount];
+
+        final Set<String> bigrams = new HashSet<String>();
+        getBigrams(query, bigrams);
+        for (String bigram : bigrams) {
+            final int[] terms = mBigramTerms.get(bigram);
+            if (terms == null) {
+                continue;
+            }
+            for (int termId : terms) {
+                sharedBigrams[termId]++;
+            }
+        }
+
+        // Each edit removes at most two bigrams of the query from the term prefix
+        final int minSharedBigrams = bigrams.size() - 2 * maxDistance;
+
+        int count = 0;
+        for (int termId = 0; termId < termCount; termId++) {
+            if (sharedBigrams[termId] < minSharedBigrams ||
+                    (minSharedBigrams <= 0 && sharedBigrams[termId] == 0)) {
+                continue;
+            }
+            // Checking the clock for each candidate is cheap compared to the distance
+            if (System.nanoTime() > deadlineNanos) {
+                break;
+            }
+            final int distance = getPrefixDistance(query, mTerms[termId], maxDistance);
+            if (distance < 0) {
+                continue;
+            }
+            for (int row : mTermRows[termId]) {
+                if (outDistances[row] < 0) {
+                    outDistances[row] = distance;
+                    count++;
+                } else if (distance < outDistances[row]) {
+                    outDistances[row] = distance;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void getBigrams(String value, Set<String> outBigrams) {
+        final int length = value.length();
+        char previous = START_OF_TERM;
+        for (int n = 0; n < length; n++) {
+            final char c = value.charAt(n);
+            outBigrams.add(new String(new char[] { previous, c }));
+            previous = c;
+        }
+    }
+
+    /**
+     * @return the smallest edit distance between the query and a prefix of the term, or -1 if
+     *         it is greater than maxDistance.
+     */
+    static int getPrefixDistance(String query, String term, int maxDistance) {
+        final int queryLength = query.length();
+        final int termLength = Math.min(term.length(), queryLength + maxDistance);
+
+        int[] previous = new int[termLength + 1];
+        int[] current = new int[termLength + 1];
+        for (int j = 0; j <= termLength; j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= queryLength; i++) {
+            current[0] = i;
+            int rowMin = i;
+            final char c = query.charAt(i - 1);
+            for (int j = 1; j <= termLength; j++) {
+                final int cost = (c == term.charAt(j - 1)) ? 0 : 1;
+                current[j] = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1),
+                        previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxDistance) {
+                return -1;
+            }
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int best = Integer.MAX_VALUE;
+        for (int j = 0; j <= termLength; j++) {
+            best = Math.min(best, previous[j]);
+        }
+        return (best <= maxDistance) ? best : -1;
+    }
+}
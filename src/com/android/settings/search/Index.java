@@ -24,14 +24,18 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -54,7 +58,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -84,6 +93,8 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.FingerprintColumns;
+import static com.android.settings.search.IndexDatabaseHelper.IndexedLocalesColumns;
 
 public class Index {
 
@@ -145,6 +156,9 @@ public class Index {
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
+    // Default memory budget of the in-memory prefix search snapshot
+    private static final long DEFAULT_PREFIX_SEARCH_MEMORY_BUDGET = 512 * 1024;
+
     private static final String BASE_AUTHORITY = "com.android.settings";
 
     private static final String EMPTY = "";
@@ -154,6 +168,35 @@ public class Index {
     private static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
             "SEARCH_INDEX_DATA_PROVIDER";
 
+    // Set to false for parsing on the writer thread only (useful for comparing the indexing
+    // rates of both paths)
+    private static final boolean PARALLEL_INDEXING = true;
+    private static final int MAX_INDEXING_WORKERS = 4;
+
+    private static final String INSERT_ROW_SQL =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX + "(" +
+                    IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     private static final String NODE_NAME_PREFERENCE_SCREEN = "PreferenceScreen";
     private static final String NODE_NAME_CHECK_BOX_PREFERENCE = "CheckBoxPreference";
     private static final String NODE_NAME_LIST_PREFERENCE = "ListPreference";
@@ -200,11 +243,114 @@ public class Index {
         }
     }
 
+    /**
+     * An immutable row of the Index database, built by the indexing workers and written by the
+     * single writer of {@link UpdateIndexTask}
+     */
+    private static class IndexRow {
+        public final int docId;
+        public final String locale;
+        public final int rank;
+        public final String title;
+        public final String normalizedTitle;
+        public final String summaryOn;
+        public final String normalizedSummaryOn;
+        public final String summaryOff;
+        public final String normalizedSummaryOff;
+        public final String entries;
+        public final String keywords;
+        public final String className;
+        public final String screenTitle;
+        public final int iconResId;
+        public final String intentAction;
+        public final String intentTargetPackage;
+        public final String intentTargetClass;
+        public final boolean enabled;
+        public final String key;
+        public final int userId;
+
+        public IndexRow(int docId, String locale, int rank,
+                String title, String normalizedTitle,
+                String summaryOn, String normalizedSummaryOn,
+                String summaryOff, String normalizedSummaryOff,
+                String entries, String keywords, String className, String screenTitle,
+                int iconResId, String intentAction, String intentTargetPackage,
+                String intentTargetClass, boolean enabled, String key, int userId) {
+            this.docId = docId;
+            this.locale = locale;
+            this.rank = rank;
+            this.title = title;
+            this.normalizedTitle = normalizedTitle;
+            this.summaryOn = summaryOn;
+            this.normalizedSummaryOn = normalizedSummaryOn;
+            this.summaryOff = summaryOff;
+            this.normalizedSummaryOff = normalizedSummaryOff;
+            this.entries = entries;
+            this.keywords = keywords;
+            this.className = className;
+            this.screenTitle = screenTitle;
+            this.iconResId = iconResId;
+            this.intentAction = intentAction;
+            this.intentTargetPackage = intentTargetPackage;
+            this.intentTargetClass = intentTargetClass;
+            this.enabled = enabled;
+            this.key = key;
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * The rows produced for one {@link SearchIndexableData}, with the fingerprint bookkeeping
+     * the writer has to do for it
+     */
+    private static class IndexBatch {
+        public final List<IndexRow> rows;
+        public final String fingerprintKey;
+        public final String className;
+        public final long fingerprint;
+        public final boolean unchanged;
+        public final boolean deletePreviousRows;
+        // The rows are copied from the prebuilt index instead
+        public final boolean fromPrebuilt;
+
+        public IndexBatch(List<IndexRow> rows) {
+            this(rows, null, null, 0, false, false, false);
+        }
+
+        public IndexBatch(List<IndexRow> rows, String fingerprintKey, String className,
+                long fingerprint, boolean unchanged, boolean deletePreviousRows,
+                boolean fromPrebuilt) {
+            this.rows = Collections.unmodifiableList(rows);
+            this.fingerprintKey = fingerprintKey;
+            this.className = className;
+            this.fingerprint = fingerprint;
+            this.unchanged = unchanged;
+            this.deletePreviousRows = deletePreviousRows;
+            this.fromPrebuilt = fromPrebuilt;
+        }
+    }
+
+    /**
+     * What the fingerprints of the resources of a package depend on
+     */
+    private static class PackageFingerprint {
+        public final int versionCode;
+        public final ApkChecksums checksums;
+
+        public PackageFingerprint(int versionCode, ApkChecksums checksums) {
+            this.versionCode = versionCode;
+            this.checksums = checksums;
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
 
+    private volatile PrefixSearchIndex mPrefixSearchIndex;
+    private volatile long mPrefixSearchMemoryBudget = DEFAULT_PREFIX_SEARCH_MEMORY_BUDGET;
+
     /**
      * A basic singleton
      */
@@ -230,13 +376,42 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * Set the memory budget (in bytes) of the in-memory snapshot used for answering single term
+     * queries. A budget of 0 disables it and every query goes through the database.
+     */
+    public void setPrefixSearchMemoryBudget(long bytes) {
+        mPrefixSearchMemoryBudget = bytes;
+        final PrefixSearchIndex prefixSearchIndex = mPrefixSearchIndex;
+        if (prefixSearchIndex != null && prefixSearchIndex.getEstimatedSize() > bytes) {
+            mPrefixSearchIndex = null;
+        }
+    }
+
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Search the Index.
+     *
+     * @param cancellationSignal a signal to cancel the database queries while they are running,
+     *                           or null if none.
+     * @throws android.os.OperationCanceledException if the queries have been canceled.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final PrefixSearchIndex prefixSearchIndex = mPrefixSearchIndex;
+        if (prefixSearchIndex != null &&
+                prefixSearchIndex.canSearch(query, Locale.getDefault().toString())) {
+            return prefixSearchIndex.search(query);
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
         final Cursor[] cursors = new Cursor[2];
 
         final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
         Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        cursors[0] = database.rawQuery(primarySql, null, cancellationSignal);
 
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
         StringBuilder sql = new StringBuilder(
@@ -246,15 +421,32 @@ public class Index {
 
         final String secondarySql = sql.toString();
         Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        try {
+            cursors[1] = database.rawQuery(secondarySql, null, cancellationSignal);
+        } catch (RuntimeException e) {
+            // Canceled or failed, the caller never gets the primary cursor to close it
+            cursors[0].close();
+            throw e;
+        }
 
         return new MergeCursor(cursors);
     }
 
     public Cursor getSuggestions(String query) {
+        return getSuggestions(query, null);
+    }
+
+    /**
+     * Get the saved queries starting with a query.
+     *
+     * @param cancellationSignal a signal to cancel the database query while it is running,
+     *                           or null if none.
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
         final String sql = buildSuggestionsSQL(query);
         Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        return getReadableDatabase().rawQuery(sql, null, cancellationSignal);
     }
 
     private String buildSuggestionsSQL(String query) {
@@ -473,10 +665,53 @@ public class Index {
         if (className == null) {
             throw new IllegalArgumentException("class name cannot be null!");
         }
+        final SearchIndexableResource res = addClassNameResource(className, rebuild,
+                includeInSearchResults);
+        if (res == null) {
+            return;
+        }
+        mDataToProcess.forceUpdate = true;
+        updateInternal();
+        res.enabled = false;
+    }
+
+    /**
+     * Update the Index for several class name resources in one single update
+     *
+     * @param classNames the class names (typically fragment names), each one mapped to true if
+     *                   you want to delete its data from the Index first.
+     * @param includeInSearchResults true means that you want the bit "enabled" set so that the
+     *                               data will be seen included into the search results
+     */
+    public void updateFromClassNameResources(Map<String, Boolean> classNames,
+            boolean includeInSearchResults) {
+        final List<SearchIndexableResource> resources = new ArrayList<SearchIndexableResource>();
+        for (Map.Entry<String, Boolean> entry : classNames.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("class name cannot be null!");
+            }
+            final SearchIndexableResource res = addClassNameResource(entry.getKey(),
+                    entry.getValue(), includeInSearchResults);
+            if (res != null) {
+                resources.add(res);
+            }
+        }
+        if (resources.isEmpty()) {
+            return;
+        }
+        mDataToProcess.forceUpdate = true;
+        updateInternal();
+        for (SearchIndexableResource res : resources) {
+            res.enabled = false;
+        }
+    }
+
+    private SearchIndexableResource addClassNameResource(String className, boolean rebuild,
+            boolean includeInSearchResults) {
         final SearchIndexableResource res = SearchIndexableResources.getResourceByName(className);
         if (res == null ) {
             Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: " + className);
-            return;
+            return null;
         }
         res.context = mContext;
         res.enabled = includeInSearchResults;
@@ -484,9 +719,7 @@ public class Index {
             deleteIndexableData(res);
         }
         addIndexableData(res);
-        mDataToProcess.forceUpdate = true;
-        updateInternal();
-        res.enabled = false;
+        return res;
     }
 
     public void updateFromSearchIndexableData(SearchIndexableData data) {
@@ -706,23 +939,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<IndexRow> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<IndexRow> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -755,7 +988,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<IndexRow> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -763,15 +996,15 @@ public class Index {
             return;
         }
 
-        final List<String> nonIndexableKeys = new ArrayList<String>();
+        indexOneResource(rows, localeStr, sir,
+                getNonIndexableKeysForResource(sir, nonIndexableKeysFromResource));
+    }
 
-        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
-            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
-            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
-                nonIndexableKeys.addAll(resNonIndxableKeys);
-            }
+    private void indexOneResource(List<IndexRow> rows, String localeStr,
+            SearchIndexableResource sir, List<String> nonIndexableKeys) {
 
-            indexFromResource(sir.context, database, localeStr,
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -791,15 +1024,133 @@ public class Index {
             // Will be non null only for a Local provider implementing a
             // SEARCH_INDEX_DATA_PROVIDER field
             final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
+            if (provider != null) {
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+            }
+        }
+    }
+
+    /**
+     * Collect the keys that should not be indexed for a resource, either declared by its
+     * package (remote providers) or by its local {@link Indexable.SearchIndexProvider}.
+     */
+    private List<String> getNonIndexableKeysForResource(SearchIndexableResource sir,
+            Map<String, List<String>> nonIndexableKeysFromResource) {
+        final List<String> nonIndexableKeys = new ArrayList<String>();
+
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
+            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
+                nonIndexableKeys.addAll(resNonIndxableKeys);
+            }
+        } else if (!TextUtils.isEmpty(sir.className)) {
+            final Class<?> clazz = getIndexableClass(sir.className);
+            final Indexable.SearchIndexProvider provider = clazz != null
+                    ? getSearchIndexProvider(clazz) : null;
             if (provider != null) {
                 List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
                 if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
+            }
+        }
+        return nonIndexableKeys;
+    }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+    private static String getFingerprintKey(SearchIndexableResource sir) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(getPackageNameForResource(sir));
+        sb.append("/");
+        if (!TextUtils.isEmpty(sir.className)) {
+            sb.append(sir.className);
+        } else {
+            sb.append(sir.xmlResId);
+        }
+        return sb.toString();
+    }
+
+    private static String getPackageNameForResource(SearchIndexableResource sir) {
+        if (!TextUtils.isEmpty(sir.packageName)) {
+            return sir.packageName;
+        }
+        return (sir.context != null) ? sir.context.getPackageName() : EMPTY;
+    }
+
+    /**
+     * Compute the fingerprint of a resource: its XML resource id, its provider class name, the
+     * version of the package providing it, the checksums of the content it is built from and
+     * the keys that should not be indexed.
+     *
+     * The version code of a system package does not change with an OTA, so the checksums of
+     * the resource table and of the XML resource (or of the code for a provider) are what
+     * tells that a resource has changed. They do not depend on the device, which lets the
+     * fingerprints of the prebuilt index match the ones computed here.
+     */
+    private long computeFingerprint(SearchIndexableResource sir, List<String> nonIndexableKeys,
+            Map<String, PackageFingerprint> packageFingerprints) {
+        long hash = 17;
+        hash = 31 * hash + sir.xmlResId;
+        hash = 31 * hash + ((sir.className != null) ? sir.className.hashCode() : 0);
+
+        final String packageName = getPackageNameForResource(sir);
+        PackageFingerprint packageFingerprint;
+        synchronized (packageFingerprints) {
+            if (!packageFingerprints.containsKey(packageName)) {
+                packageFingerprints.put(packageName, loadPackageFingerprint(packageName));
             }
+            packageFingerprint = packageFingerprints.get(packageName);
+        }
+        if (packageFingerprint != null) {
+            hash = 31 * hash + packageFingerprint.versionCode;
+            final ApkChecksums checksums = packageFingerprint.checksums;
+            if (checksums != null) {
+                hash = 31 * hash + checksums.resourceTableCrc;
+                if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+                    hash = 31 * hash + checksums.getXmlResourceCrc(getXmlResourcePath(sir));
+                } else {
+                    hash = 31 * hash + checksums.codeCrc;
+                }
+            } else {
+                // The content is unknown, index the resource again for each build
+                hash = 31 * hash + Build.VERSION.INCREMENTAL.hashCode();
+            }
+        }
+
+        final List<String> sortedKeys = new ArrayList<String>(nonIndexableKeys);
+        Collections.sort(sortedKeys);
+        hash = 31 * hash + sortedKeys.hashCode();
+
+        return hash;
+    }
+
+    private PackageFingerprint loadPackageFingerprint(String packageName) {
+        try {
+            final PackageInfo info =
+                    mContext.getPackageManager().getPackageInfo(packageName, 0);
+            final String apkPath = (info.applicationInfo != null)
+                    ? info.applicationInfo.sourceDir : null;
+            return new PackageFingerprint(info.versionCode, ApkChecksums.read(apkPath));
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOG_TAG, "Cannot find package info for: " + packageName);
+            return null;
+        }
+    }
+
+    /**
+     * @return the path of the XML resource in its apk, for the current configuration.
+     */
+    private static String getXmlResourcePath(SearchIndexableResource sir) {
+        if (sir.context == null) {
+            return null;
+        }
+        try {
+            final TypedValue value = new TypedValue();
+            sir.context.getResources().getValue(sir.xmlResId, value, true);
+            return (value.string != null) ? value.string.toString() : null;
+        } catch (Resources.NotFoundException e) {
+            Log.w(LOG_TAG, "Cannot find XML resource: " + sir.xmlResId);
+            return null;
         }
     }
 
@@ -823,7 +1174,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -863,7 +1214,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -895,7 +1246,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -907,7 +1258,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -923,7 +1274,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<IndexRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -948,7 +1299,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -984,7 +1335,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -992,7 +1343,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -1007,7 +1358,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1019,14 +1370,14 @@ public class Index {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1044,29 +1395,13 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(new IndexRow(docId, locale, rank,
+                updatedTitle, normalizedTitle,
+                updatedSummaryOn, normalizedSummaryOn,
+                updatedSummaryOff, normalizedSummaryOff,
+                entries, keywords, className, screenTitle, iconResId,
+                intentAction, intentTargetPackage, intentTargetClass,
+                enabled, key, userId));
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1157,11 +1492,95 @@ public class Index {
         }
    }
 
+    /**
+     * Build the rows for one {@link SearchIndexableData}. Resources whose fingerprint is the same
+     * as the one stored for them produce no rows.
+     */
+    private class IndexJob implements Callable<IndexBatch> {
+        private final String mLocaleStr;
+        private final SearchIndexableData mData;
+        private final Map<String, List<String>> mNonIndexableKeys;
+        private final Map<String, Long> mFingerprints;
+        private final Map<String, Long> mPrebuiltFingerprints;
+        private final Map<String, PackageFingerprint> mPackageFingerprints;
+
+        /**
+         * @param fingerprints the stored fingerprints for the locale, or null to force indexing.
+         * @param prebuiltFingerprints the fingerprints of the prebuilt index, or null.
+         */
+        public IndexJob(String localeStr, SearchIndexableData data,
+                Map<String, List<String>> nonIndexableKeys, Map<String, Long> fingerprints,
+                Map<String, Long> prebuiltFingerprints,
+                Map<String, PackageFingerprint> packageFingerprints) {
+            mLocaleStr = localeStr;
+            mData = data;
+            mNonIndexableKeys = nonIndexableKeys;
+            mFingerprints = fingerprints;
+            mPrebuiltFingerprints = prebuiltFingerprints;
+            mPackageFingerprints = packageFingerprints;
+        }
+
+        /**
+         * @return the batch to write, or null if the data cannot be indexed.
+         */
+        @Override
+        public IndexBatch call() {
+            try {
+                if (mData instanceof SearchIndexableResource) {
+                    return buildResourceBatch((SearchIndexableResource) mData);
+                }
+                final List<IndexRow> rows = new ArrayList<IndexRow>();
+                indexOneSearchIndexableData(rows, mLocaleStr, mData, mNonIndexableKeys);
+                return new IndexBatch(rows);
+            } catch (Exception e) {
+                Log.e(LOG_TAG,
+                        "Cannot index: " + mData.className + " for locale: " + mLocaleStr, e);
+                return null;
+            }
+        }
+
+        private IndexBatch buildResourceBatch(SearchIndexableResource sir) {
+            final List<String> resourceNonIndexableKeys =
+                    getNonIndexableKeysForResource(sir, mNonIndexableKeys);
+            final String key = getFingerprintKey(sir);
+            final long fingerprint = computeFingerprint(sir, resourceNonIndexableKeys,
+                    mPackageFingerprints);
+
+            boolean deletePreviousRows = false;
+            if (mFingerprints != null) {
+                final Long previous = mFingerprints.get(key);
+                if (previous != null && previous == fingerprint) {
+                    // Nothing to index, only mark the fingerprint as seen for this build
+                    return new IndexBatch(Collections.<IndexRow>emptyList(), key, sir.className,
+                            fingerprint, true, false, false);
+                }
+                deletePreviousRows = (previous != null);
+            }
+
+            if (mPrebuiltFingerprints != null && !TextUtils.isEmpty(sir.className)) {
+                final Long prebuilt = mPrebuiltFingerprints.get(key);
+                if (prebuilt != null && prebuilt == fingerprint) {
+                    // The prebuilt rows have been indexed from the same content
+                    return new IndexBatch(Collections.<IndexRow>emptyList(), key, sir.className,
+                            fingerprint, false, true, true);
+                }
+            }
+
+            final List<IndexRow> rows = new ArrayList<IndexRow>();
+            indexOneResource(rows, mLocaleStr, sir, resourceNonIndexableKeys);
+            return new IndexBatch(rows, key, sir.className, fingerprint, false,
+                    deletePreviousRows, false);
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
 
+        // Resources copied from the prebuilt index by the current update
+        private int mPrebuiltResourceCount;
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -1185,52 +1604,251 @@ public class Index {
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
+            final boolean revalidate = dataToUpdate.size() > 0 &&
+                    !isLocaleIndexedForBuild(database, localeStr);
+            final boolean indexChanged = forceUpdate || dataToDelete.size() > 0 || revalidate;
+
+            // The resources to index again for this build may be found in the prebuilt index.
+            // It has to be attached before the transaction starts.
+            final IndexDatabaseHelper helper = IndexDatabaseHelper.getInstance(mContext);
+            final boolean prebuiltAttached = revalidate && !forceUpdate &&
+                    helper.attachPrebuiltIndex(database);
             try {
-                database.beginTransaction();
-                if (dataToDelete.size() > 0) {
-                    processDataToDelete(database, localeStr, dataToDelete);
-                }
-                if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                try {
+                    database.beginTransaction();
+                    if (dataToDelete.size() > 0) {
+                        processDataToDelete(database, localeStr, dataToDelete);
+                    }
+                    if (dataToUpdate.size() > 0) {
+                        processDataToUpdate(database, localeStr, dataToUpdate,
+                                nonIndexableKeys, forceUpdate, prebuiltAttached);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
                 }
-                database.setTransactionSuccessful();
             } finally {
-                database.endTransaction();
+                if (prebuiltAttached) {
+                    helper.detachPrebuiltIndex(database);
+                }
             }
 
+            updatePrefixSearchIndex(database, localeStr, indexChanged);
+
             return null;
         }
 
+        private void updatePrefixSearchIndex(SQLiteDatabase database, String localeStr,
+                boolean indexChanged) {
+            final long memoryBudget = mPrefixSearchMemoryBudget;
+            if (memoryBudget <= 0) {
+                mPrefixSearchIndex = null;
+                return;
+            }
+            final PrefixSearchIndex current = mPrefixSearchIndex;
+            if (!indexChanged && current != null && current.getLocale().equals(localeStr)) {
+                return;
+            }
+
+            final long start = System.currentTimeMillis();
+            try {
+                final PrefixSearchIndex prefixSearchIndex = PrefixSearchIndex.build(database,
+                        localeStr, SELECT_COLUMNS, MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY,
+                        memoryBudget);
+                if (prefixSearchIndex != null) {
+                    prefixSearchIndex.setSavedQueries(loadSavedQueries(database));
+                }
+                mPrefixSearchIndex = prefixSearchIndex;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Cannot build prefix search index for locale: " + localeStr, e);
+                mPrefixSearchIndex = null;
+            }
+
+            final PrefixSearchIndex result = mPrefixSearchIndex;
+            if (result != null) {
+                Log.d(LOG_TAG, "Building prefix search index for locale '" + localeStr +
+                        "' took " + (System.currentTimeMillis() - start) + " millis (" +
+                        result.getRowCount() + " rows, ~" + result.getEstimatedSize() +
+                        " bytes)");
+            }
+        }
+
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                boolean forceUpdate, boolean prebuiltAttached) {
 
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
+            if (!forceUpdate && isLocaleIndexedForBuild(database, localeStr)) {
                 Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
                 return true;
             }
 
             boolean result = false;
             final long current = System.currentTimeMillis();
+            mPrebuiltResourceCount = 0;
+
+            // A forced update always re-indexes what it has been given, otherwise only the
+            // resources whose fingerprint has changed are re-indexed
+            final Map<String, Long> fingerprints = forceUpdate ? null :
+                    loadFingerprints(database, localeStr);
+            final Map<String, Long> prebuiltFingerprints = prebuiltAttached
+                    ? IndexDatabaseHelper.getInstance(mContext).loadPrebuiltFingerprints(
+                            database, localeStr)
+                    : null;
+            final Map<String, PackageFingerprint> packageFingerprints =
+                    new HashMap<String, PackageFingerprint>();
 
             final int count = dataToUpdate.size();
+            final List<IndexJob> jobs = new ArrayList<IndexJob>(count);
             for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                jobs.add(new IndexJob(localeStr, dataToUpdate.get(n), nonIndexableKeys,
+                        fingerprints, prebuiltFingerprints, packageFingerprints));
+            }
+
+            // The workers parse the resources and query the providers, this thread is the
+            // only one writing into the database
+            final int workers = PARALLEL_INDEXING
+                    ? Math.min(MAX_INDEXING_WORKERS,
+                            Runtime.getRuntime().availableProcessors()) : 1;
+            final SQLiteStatement insertStatement = database.compileStatement(INSERT_ROW_SQL);
+            int rowCount = 0;
+            int failed = 0;
+            try {
+                if (workers > 1 && count > 1) {
+                    final ExecutorService executor = Executors.newFixedThreadPool(workers);
+                    try {
+                        final CompletionService<IndexBatch> completionService =
+                                new ExecutorCompletionService<IndexBatch>(executor);
+                        for (int n = 0; n < count; n++) {
+                            completionService.submit(jobs.get(n));
+                        }
+                        for (int n = 0; n < count; n++) {
+                            final IndexBatch batch = takeBatch(completionService);
+                            if (batch == null) {
+                                failed++;
+                                continue;
+                            }
+                            rowCount += writeBatch(database, insertStatement, localeStr, batch);
+                        }
+                    } finally {
+                        executor.shutdownNow();
+                    }
+                } else {
+                    for (int n = 0; n < count; n++) {
+                        final IndexBatch batch = jobs.get(n).call();
+                        if (batch == null) {
+                            failed++;
+                            continue;
+                        }
+                        rowCount += writeBatch(database, insertStatement, localeStr, batch);
+                    }
                 }
+            } finally {
+                insertStatement.close();
+            }
+
+            if (!forceUpdate) {
+                pruneFingerprints(database, localeStr);
+                setLocaleIndexedForBuild(database, localeStr);
             }
 
             final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            final long duration = now - current;
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " + duration + " millis (" +
+                    rowCount + " rows, " + (rowCount * 1000L / Math.max(1, duration)) +
+                    " rows/sec, " + workers + " worker(s), " + failed + " failed, " +
+                    mPrebuiltResourceCount + " from the prebuilt index)");
             return result;
         }
 
+        private IndexBatch takeBatch(CompletionService<IndexBatch> completionService) {
+            try {
+                return completionService.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while indexing", e);
+            } catch (ExecutionException e) {
+                // IndexJob is catching its own exceptions, so this should not happen
+                Log.e(LOG_TAG, "Cannot index data", e.getCause());
+                return null;
+            }
+        }
+
+        /**
+         * Write the rows of a batch with the compiled insert statement.
+         *
+         * @return the number of rows written.
+         */
+        private int writeBatch(SQLiteDatabase database, SQLiteStatement insertStatement,
+                String localeStr, IndexBatch batch) {
+            if (batch.unchanged) {
+                markFingerprintSeen(database, localeStr, batch.fingerprintKey);
+                return 0;
+            }
+            if (batch.deletePreviousRows) {
+                // Remove the outdated rows before writing the resource again. The rows of a
+                // resource without a class name can only be found from their doc ids.
+                if (!TextUtils.isEmpty(batch.className)) {
+                    deleteForLocale(database, localeStr, batch.className);
+                } else {
+                    deleteDocIds(database, localeStr,
+                            loadDocIds(database, localeStr, batch.fingerprintKey));
+                }
+            }
+
+            if (batch.fromPrebuilt) {
+                IndexDatabaseHelper.getInstance(mContext).copyPrebuiltRows(database, localeStr,
+                        batch.className);
+                mPrebuiltResourceCount++;
+            }
+
+            final List<IndexRow> rows = batch.rows;
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                insertRow(insertStatement, rows.get(n));
+            }
+
+            if (batch.fingerprintKey != null) {
+                final String docIds = TextUtils.isEmpty(batch.className)
+                        ? joinDocIds(rows) : null;
+                saveFingerprint(database, localeStr, batch.fingerprintKey, batch.className,
+                        batch.fingerprint, docIds);
+            }
+            return count;
+        }
+
+        private void insertRow(SQLiteStatement statement, IndexRow row) {
+            statement.clearBindings();
+            statement.bindLong(1, row.docId);
+            bindStringOrNull(statement, 2, row.locale);
+            statement.bindLong(3, row.rank);
+            bindStringOrNull(statement, 4, row.title);
+            bindStringOrNull(statement, 5, row.normalizedTitle);
+            bindStringOrNull(statement, 6, row.summaryOn);
+            bindStringOrNull(statement, 7, row.normalizedSummaryOn);
+            bindStringOrNull(statement, 8, row.summaryOff);
+            bindStringOrNull(statement, 9, row.normalizedSummaryOff);
+            bindStringOrNull(statement, 10, row.entries);
+            bindStringOrNull(statement, 11, row.keywords);
+            bindStringOrNull(statement, 12, row.className);
+            bindStringOrNull(statement, 13, row.screenTitle);
+            bindStringOrNull(statement, 14, row.intentAction);
+            bindStringOrNull(statement, 15, row.intentTargetPackage);
+            bindStringOrNull(statement, 16, row.intentTargetClass);
+            statement.bindLong(17, row.iconResId);
+            statement.bindLong(18, row.enabled ? 1 : 0);
+            bindStringOrNull(statement, 19, row.key);
+            statement.bindLong(20, row.userId);
+            statement.executeInsert();
+        }
+
+        private void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+            if (value != null) {
+                statement.bindString(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1268,18 +1886,45 @@ public class Index {
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        private List<String> loadSavedQueries(SQLiteDatabase database) {
+            final List<String> result = new ArrayList<String>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_SAVED_QUERIES,
+                        new String[] { IndexDatabaseHelper.SavedQueriesColums.QUERY },
+                        null, null, null, null, "rowId DESC",
+                        Long.toString(MAX_SAVED_SEARCH_QUERY));
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getString(0));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return result;
+        }
+
+        private int deleteForLocale(SQLiteDatabase database, String localeStr,
+                String className) {
+            final String whereClause = IndexColumns.LOCALE + "=? AND " +
+                    IndexColumns.CLASS_NAME + "=?";
+            final String[] whereArgs = new String[] { localeStr, className };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
+        private boolean isLocaleIndexedForBuild(SQLiteDatabase database, String locale) {
             Cursor cursor = null;
             boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(Tables.TABLE_INDEXED_LOCALES,
+                        new String[] { IndexedLocalesColumns.BUILD },
+                        IndexedLocalesColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null, "1");
+                if (cursor.moveToFirst()) {
+                    result = Build.VERSION.INCREMENTAL.equals(cursor.getString(0));
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1287,6 +1932,158 @@ public class Index {
             }
             return result;
         }
+
+        private void setLocaleIndexedForBuild(SQLiteDatabase database, String locale) {
+            final ContentValues values = new ContentValues();
+            values.put(IndexedLocalesColumns.LOCALE, locale);
+            values.put(IndexedLocalesColumns.BUILD, Build.VERSION.INCREMENTAL);
+            database.replaceOrThrow(Tables.TABLE_INDEXED_LOCALES, null, values);
+        }
+
+        private Map<String, Long> loadFingerprints(SQLiteDatabase database, String locale) {
+            final Map<String, Long> result = new HashMap<String, Long>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_RESOURCE_FINGERPRINTS,
+                        new String[] { FingerprintColumns.RESOURCE_KEY,
+                                FingerprintColumns.FINGERPRINT },
+                        FingerprintColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return result;
+        }
+
+        private void saveFingerprint(SQLiteDatabase database, String locale, String key,
+                String className, long fingerprint, String docIds) {
+            final ContentValues values = new ContentValues();
+            values.put(FingerprintColumns.LOCALE, locale);
+            values.put(FingerprintColumns.RESOURCE_KEY, key);
+            values.put(FingerprintColumns.CLASS_NAME, className);
+            values.put(FingerprintColumns.FINGERPRINT, fingerprint);
+            values.put(FingerprintColumns.BUILD, Build.VERSION.INCREMENTAL);
+            values.put(FingerprintColumns.DOC_IDS, docIds);
+            database.replaceOrThrow(Tables.TABLE_RESOURCE_FINGERPRINTS, null, values);
+        }
+
+        private void markFingerprintSeen(SQLiteDatabase database, String locale, String key) {
+            final ContentValues values = new ContentValues();
+            values.put(FingerprintColumns.BUILD, Build.VERSION.INCREMENTAL);
+            database.update(Tables.TABLE_RESOURCE_FINGERPRINTS, values,
+                    FingerprintColumns.LOCALE + " = ? AND " +
+                            FingerprintColumns.RESOURCE_KEY + " = ?",
+                    new String[] { locale, key });
+        }
+
+        private String joinDocIds(List<IndexRow> rows) {
+            final StringBuilder sb = new StringBuilder();
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                if (n > 0) {
+                    sb.append(',');
+                }
+                sb.append(rows.get(n).docId);
+            }
+            return sb.toString();
+        }
+
+        private String loadDocIds(SQLiteDatabase database, String locale, String key) {
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_RESOURCE_FINGERPRINTS,
+                        new String[] { FingerprintColumns.DOC_IDS },
+                        FingerprintColumns.LOCALE + " = ? AND " +
+                                FingerprintColumns.RESOURCE_KEY + " = ?",
+                        new String[] { locale, key }, null, null, null);
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Delete the rows of a resource without a class name, given the doc ids saved with its
+         * fingerprint. They are integers written by {@link #joinDocIds}.
+         */
+        private int deleteDocIds(SQLiteDatabase database, String locale, String docIds) {
+            if (TextUtils.isEmpty(docIds)) {
+                return 0;
+            }
+            return database.delete(Tables.TABLE_PREFS_INDEX,
+                    IndexColumns.LOCALE + " = ? AND " + IndexColumns.DOCID +
+                            " IN (" + docIds + ")",
+                    new String[] { locale });
+        }
+
+        /**
+         * Remove the data of the resources that have not been seen during a full update for the
+         * current build (for example a screen removed by an OTA).
+         */
+        private void pruneFingerprints(SQLiteDatabase database, String locale) {
+            final String build = Build.VERSION.INCREMENTAL;
+            final String[] args = new String[] { locale, locale, build, locale, build };
+
+            final StringBuilder sb = new StringBuilder();
+            sb.append(IndexColumns.LOCALE);
+            sb.append(" = ? AND ");
+            sb.append(IndexColumns.CLASS_NAME);
+            sb.append(" IN (SELECT ");
+            sb.append(FingerprintColumns.CLASS_NAME);
+            sb.append(" FROM ");
+            sb.append(Tables.TABLE_RESOURCE_FINGERPRINTS);
+            sb.append(" WHERE ");
+            sb.append(FingerprintColumns.LOCALE);
+            sb.append(" = ? AND ");
+            sb.append(FingerprintColumns.BUILD);
+            sb.append(" != ? AND ");
+            sb.append(FingerprintColumns.CLASS_NAME);
+            sb.append(" NOT IN (SELECT ");
+            sb.append(FingerprintColumns.CLASS_NAME);
+            sb.append(" FROM ");
+            sb.append(Tables.TABLE_RESOURCE_FINGERPRINTS);
+            sb.append(" WHERE ");
+            sb.append(FingerprintColumns.LOCALE);
+            sb.append(" = ? AND ");
+            sb.append(FingerprintColumns.BUILD);
+            sb.append(" = ? AND ");
+            sb.append(FingerprintColumns.CLASS_NAME);
+            sb.append(" IS NOT NULL))");
+
+            int deletedRows = database.delete(Tables.TABLE_PREFS_INDEX, sb.toString(), args);
+
+            // The resources without a class name have their doc ids saved instead
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_RESOURCE_FINGERPRINTS,
+                        new String[] { FingerprintColumns.DOC_IDS },
+                        FingerprintColumns.LOCALE + " = ? AND " + FingerprintColumns.BUILD +
+                                " != ? AND " + FingerprintColumns.DOC_IDS + " IS NOT NULL",
+                        new String[] { locale, build }, null, null, null);
+                while (cursor.moveToNext()) {
+                    deletedRows += deleteDocIds(database, locale, cursor.getString(0));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            final int deletedFingerprints = database.delete(Tables.TABLE_RESOURCE_FINGERPRINTS,
+                    FingerprintColumns.LOCALE + " = ? AND " + FingerprintColumns.BUILD + " != ?",
+                    new String[] { locale, build });
+            if (deletedFingerprints > 0) {
+                Log.d(LOG_TAG, "Pruned " + deletedFingerprints + " outdated resource(s) and " +
+                        deletedRows + " row(s) for locale '" + locale + "'");
+            }
+        }
     }
 
     /**
@@ -1315,6 +2112,11 @@ public class Index {
                 lastInsertedRowId =
                         database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
 
+                final PrefixSearchIndex prefixSearchIndex = mPrefixSearchIndex;
+                if (prefixSearchIndex != null) {
+                    prefixSearchIndex.addSavedQuery(params[0]);
+                }
+
                 // Last, remove "old" saved queries
                 final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
                 if (delta > 0) {
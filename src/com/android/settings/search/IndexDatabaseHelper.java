@@ -18,22 +18,38 @@ package com.android.settings.search;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 117;
+    private static final int DATABASE_VERSION = 119;
+
+    // Index generated on a device (see PrebuiltSearchIndexGenerator in the tests) and shipped
+    // in the assets. Its resources are only used when their fingerprint is the current one.
+    private static final String PREBUILT_INDEX_ASSET = "search_index_prebuilt.db";
+    private static final String PREBUILT_DATABASE_ALIAS = "prebuilt";
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_RESOURCE_FINGERPRINTS = "resource_fingerprints";
+        public static final String TABLE_INDEXED_LOCALES = "indexed_locales";
     }
 
     public interface IndexColumns {
@@ -68,6 +84,21 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface FingerprintColumns {
+        public static final String LOCALE = "locale";
+        public static final String RESOURCE_KEY = "resource_key";
+        public static final String CLASS_NAME = "class_name";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String BUILD = "build";
+        // Doc ids of the rows of a resource without a class name, separated by commas
+        public static final String DOC_IDS = "doc_ids";
+    }
+
+    public interface IndexedLocalesColumns {
+        public static final String LOCALE = "locale";
+        public static final String BUILD = "build";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -124,6 +155,33 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_RESOURCE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_RESOURCE_FINGERPRINTS +
+                    "(" +
+                    FingerprintColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.RESOURCE_KEY + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.CLASS_NAME + " TEXT" +
+                    ", " +
+                    FingerprintColumns.FINGERPRINT + " INTEGER NOT NULL" +
+                    ", " +
+                    FingerprintColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.DOC_IDS + " TEXT" +
+                    ", " +
+                    "PRIMARY KEY (" + FingerprintColumns.LOCALE + ", " +
+                    FingerprintColumns.RESOURCE_KEY + ")" +
+                    ")";
+
+    private static final String CREATE_INDEXED_LOCALES_TABLE =
+            "CREATE TABLE " + Tables.TABLE_INDEXED_LOCALES +
+                    "(" +
+                    IndexedLocalesColumns.LOCALE + " VARCHAR(32) PRIMARY KEY" +
+                    ", " +
+                    IndexedLocalesColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -131,8 +189,32 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
+    private static final String PREFS_INDEX_COPY_COLUMNS =
+            IndexColumns.DOCID + ", " +
+            IndexColumns.LOCALE + ", " +
+            IndexColumns.DATA_RANK + ", " +
+            IndexColumns.DATA_TITLE + ", " +
+            IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+            IndexColumns.DATA_SUMMARY_ON + ", " +
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+            IndexColumns.DATA_SUMMARY_OFF + ", " +
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+            IndexColumns.DATA_ENTRIES + ", " +
+            IndexColumns.DATA_KEYWORDS + ", " +
+            IndexColumns.SCREEN_TITLE + ", " +
+            IndexColumns.CLASS_NAME + ", " +
+            IndexColumns.ICON + ", " +
+            IndexColumns.INTENT_ACTION + ", " +
+            IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+            IndexColumns.INTENT_TARGET_CLASS + ", " +
+            IndexColumns.ENABLED + ", " +
+            IndexColumns.DATA_KEY_REF + ", " +
+            IndexColumns.USER_ID;
+
     private static IndexDatabaseHelper sSingleton;
 
+    private final Context mContext;
+
     public static synchronized IndexDatabaseHelper getInstance(Context context) {
         if (sSingleton == null) {
             sSingleton = new IndexDatabaseHelper(context);
@@ -142,6 +224,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     public IndexDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context.getApplicationContext();
     }
 
     @Override
@@ -150,11 +233,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void bootstrapDB(SQLiteDatabase db) {
+        createTables(db);
+        Log.i(TAG, "Bootstrapped database");
+    }
+
+    private static void createTables(SQLiteDatabase db) {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_RESOURCE_FINGERPRINTS_TABLE);
+        db.execSQL(CREATE_INDEXED_LOCALES_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
-        Log.i(TAG, "Bootstrapped database");
     }
 
     @Override
@@ -164,14 +253,176 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            Log.w(TAG, "Index needs to be revalidated as build-version is not the same");
+            // Keep the indexed data: the resource fingerprints will tell which screens
+            // need to be indexed again for the new build
+            updateBuildVersion(db);
         } else {
             Log.i(TAG, "Index is fine");
         }
     }
 
+    /**
+     * Attach the prebuilt index shipped in the assets, if any. It cannot be done while a
+     * transaction is running.
+     *
+     * @return true if the prebuilt index is attached and has the current schema.
+     */
+    public boolean attachPrebuiltIndex(SQLiteDatabase db) {
+        final File file = getPrebuiltIndexFile();
+        try {
+            if (!copyPrebuiltIndexAsset(file)) {
+                return false;
+            }
+            db.execSQL("ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(file.getPath()) +
+                    " AS " + PREBUILT_DATABASE_ALIAS);
+            final long version = DatabaseUtils.longForQuery(db,
+                    "PRAGMA " + PREBUILT_DATABASE_ALIAS + ".user_version", null);
+            if (version != DATABASE_VERSION) {
+                Log.i(TAG, "Prebuilt index has schema version " + version);
+                detachPrebuiltIndex(db);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot attach prebuilt index", e);
+            file.delete();
+            return false;
+        }
+    }
+
+    public void detachPrebuiltIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("DETACH DATABASE " + PREBUILT_DATABASE_ALIAS);
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot detach prebuilt index", e);
+        } finally {
+            getPrebuiltIndexFile().delete();
+        }
+    }
+
+    private File getPrebuiltIndexFile() {
+        return new File(mContext.getCacheDir(), PREBUILT_INDEX_ASSET);
+    }
+
+    private boolean copyPrebuiltIndexAsset(File file) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            try {
+                in = mContext.getAssets().open(PREBUILT_INDEX_ASSET);
+            } catch (IOException e) {
+                Log.d(TAG, "No prebuilt index");
+                return false;
+            }
+            out = new FileOutputStream(file);
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return true;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Load the fingerprints of the resources of the attached prebuilt index having a class
+     * name, by resource key.
+     */
+    public Map<String, Long> loadPrebuiltFingerprints(SQLiteDatabase db, String locale) {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(PREBUILT_DATABASE_ALIAS + "." +
+                    Tables.TABLE_RESOURCE_FINGERPRINTS,
+                    new String[] { FingerprintColumns.RESOURCE_KEY,
+                            FingerprintColumns.FINGERPRINT },
+                    FingerprintColumns.LOCALE + " = ? AND " +
+                            FingerprintColumns.CLASS_NAME + " IS NOT NULL",
+                    new String[] { locale }, null, null, null);
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy the rows of a resource from the attached prebuilt index.
+     */
+    public void copyPrebuiltRows(SQLiteDatabase db, String locale, String className) {
+        db.execSQL("INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX +
+                "(" + PREFS_INDEX_COPY_COLUMNS + ")" +
+                " SELECT " + PREFS_INDEX_COPY_COLUMNS +
+                " FROM " + PREBUILT_DATABASE_ALIAS + "." + Tables.TABLE_PREFS_INDEX +
+                " WHERE " + IndexColumns.LOCALE + " = ? AND " + IndexColumns.CLASS_NAME + " = ?",
+                new Object[] { locale, className });
+    }
+
+    /**
+     * Export the indexed data of a locale into a database that can be shipped as the prebuilt
+     * index. The data of the other locales already in that database is kept.
+     */
+    public void exportIndex(File file, String locale) {
+        final SQLiteDatabase exported = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            if (exported.getVersion() == 0) {
+                createTables(exported);
+                exported.setVersion(DATABASE_VERSION);
+            }
+            exported.execSQL("DELETE FROM " + Tables.TABLE_META_INDEX);
+            exported.execSQL(INSERT_BUILD_VERSION);
+        } finally {
+            exported.close();
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        db.execSQL("ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(file.getPath()) +
+                " AS " + PREBUILT_DATABASE_ALIAS);
+        try {
+            final String[] args = new String[] { locale };
+            final String whereLocale = IndexColumns.LOCALE + " = ?";
+            final String prebuilt = PREBUILT_DATABASE_ALIAS + ".";
+
+            db.beginTransaction();
+            try {
+                db.execSQL("DELETE FROM " + prebuilt + Tables.TABLE_PREFS_INDEX +
+                        " WHERE " + whereLocale, args);
+                db.execSQL("DELETE FROM " + prebuilt + Tables.TABLE_RESOURCE_FINGERPRINTS +
+                        " WHERE " + whereLocale, args);
+                db.execSQL("DELETE FROM " + prebuilt + Tables.TABLE_INDEXED_LOCALES +
+                        " WHERE " + whereLocale, args);
+                db.execSQL("INSERT INTO " + prebuilt + Tables.TABLE_PREFS_INDEX +
+                        "(" + PREFS_INDEX_COPY_COLUMNS + ")" +
+                        " SELECT " + PREFS_INDEX_COPY_COLUMNS + " FROM " +
+                        Tables.TABLE_PREFS_INDEX + " WHERE " + whereLocale, args);
+                db.execSQL("INSERT INTO " + prebuilt + Tables.TABLE_RESOURCE_FINGERPRINTS +
+                        " SELECT * FROM " + Tables.TABLE_RESOURCE_FINGERPRINTS +
+                        " WHERE " + whereLocale, args);
+                db.execSQL("INSERT INTO " + prebuilt + Tables.TABLE_INDEXED_LOCALES +
+                        " SELECT * FROM " + Tables.TABLE_INDEXED_LOCALES +
+                        " WHERE " + whereLocale, args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.execSQL("DETACH DATABASE " + PREBUILT_DATABASE_ALIAS);
+        }
+        Log.i(TAG, "Exported index for locale '" + locale + "' to " + file);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion < DATABASE_VERSION) {
@@ -195,6 +446,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    private void updateBuildVersion(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.TABLE_META_INDEX);
+        db.execSQL(INSERT_BUILD_VERSION);
+    }
+
     private String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
@@ -219,5 +475,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_RESOURCE_FINGERPRINTS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_INDEXED_LOCALES);
     }
 }
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * An in-memory snapshot of the enabled rows of the Index database for one locale.
+ *
+ * It answers single term prefix queries (the ones typed as-you-type) with a binary search over
+ * sorted token arrays, using the same tokenization as the FTS4 "simple" tokenizer. Any other
+ * query has to go through the FTS4 MATCH queries.
+ *
+ * Titles and keywords also match with a few typos, and the results matching them are ranked
+ * by combining the rank of the data, the number of typos and the saved queries.
+ */
+final class PrefixSearchIndex {
+
+    private static final String LOG_TAG = "PrefixSearchIndex";
+
+    // Rough memory cost of an object header plus a reference to it
+    private static final int OBJECT_OVERHEAD = 16;
+
+    // Queries shorter than this only match without typos
+    private static final int MIN_FUZZY_QUERY_LENGTH = 3;
+    // Queries at least this long match with up to 2 typos instead of 1
+    private static final int TWO_TYPOS_QUERY_LENGTH = 6;
+    // Time allowed for finding the terms matching with typos
+    private static final long FUZZY_MATCH_BUDGET_NANOS = 2 * 1000 * 1000;
+
+    // Score added for each typo. Ranks of the Settings screens are below 32, so one typo moves a
+    // result behind the results without typo of most screens.
+    private static final int TYPO_PENALTY = 16;
+    // Score removed for each saved query starting with the query and matching the result
+    private static final int SAVED_QUERY_BONUS = 4;
+    private static final int MAX_SAVED_QUERY_BONUS = 12;
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+
+    // Rows are sorted by rank, so that walking them in order gives the FTS4 ORDER BY
+    private final String[][] mRows;
+    private final int[] mRanks;
+
+    private final String[] mPrimaryTokens;
+    private final int[] mPrimaryTokenRows;
+    private final String[] mSecondaryTokens;
+    private final int[] mSecondaryTokenRows;
+
+    private final FuzzyTermMatcher mFuzzyTermMatcher;
+
+    // Saved queries (lower case), used as the click history
+    private volatile String[] mSavedQueries = new String[0];
+
+    private final long mEstimatedSize;
+
+    private static class TokenEntry implements Comparable<TokenEntry> {
+        public final String token;
+        public final int row;
+
+        public TokenEntry(String token, int row) {
+            this.token = token;
+            this.row = row;
+        }
+
+        @Override
+        public int compareTo(TokenEntry other) {
+            final int result = token.compareTo(other.token);
+            return (result != 0) ? result : (row - other.row);
+        }
+    }
+
+    private PrefixSearchIndex(String locale, String[] columnNames, String[][] rows, int[] ranks,
+            List<TokenEntry> primaryEntries, List<TokenEntry> secondaryEntries,
+            FuzzyTermMatcher fuzzyTermMatcher, long estimatedSize) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+        mRanks = ranks;
+        mFuzzyTermMatcher = fuzzyTermMatcher;
+
+        final int primaryCount = primaryEntries.size();
+        mPrimaryTokens = new String[primaryCount];
+        mPrimaryTokenRows = new int[primaryCount];
+        for (int n = 0; n < primaryCount; n++) {
+            final TokenEntry entry = primaryEntries.get(n);
+            mPrimaryTokens[n] = entry.token;
+            mPrimaryTokenRows[n] = entry.row;
+        }
+
+        final int secondaryCount = secondaryEntries.size();
+        mSecondaryTokens = new String[secondaryCount];
+        mSecondaryTokenRows = new int[secondaryCount];
+        for (int n = 0; n < secondaryCount; n++) {
+            final TokenEntry entry = secondaryEntries.get(n);
+            mSecondaryTokens[n] = entry.token;
+            mSecondaryTokenRows[n] = entry.row;
+        }
+
+        mEstimatedSize = estimatedSize;
+    }
+
+    /**
+     * Build the snapshot for a locale.
+     *
+     * @param selectColumns the columns returned by the search Cursor.
+     * @param primaryColumns the columns matched by the primary search.
+     * @param secondaryColumns the columns matched by the secondary search.
+     * @param memoryBudget the maximum estimated size in bytes of the snapshot.
+     * @return the snapshot or null if it would not fit in the memory budget.
+     */
+    static PrefixSearchIndex build(SQLiteDatabase database, String locale,
+            String[] selectColumns, String[] primaryColumns, String[] secondaryColumns,
+            long memoryBudget) {
+        final int selectCount = selectColumns.length;
+        final int primaryCount = primaryColumns.length;
+        final int secondaryCount = secondaryColumns.length;
+
+        final String[] columns = new String[selectCount + primaryCount + secondaryCount];
+        System.arraycopy(selectColumns, 0, columns, 0, selectCount);
+        System.arraycopy(primaryColumns, 0, columns, selectCount, primaryCount);
+        System.arraycopy(secondaryColumns, 0, columns, selectCount + primaryCount,
+                secondaryCount);
+
+        final List<String[]> rows = new ArrayList<String[]>();
+        final List<Integer> ranks = new ArrayList<Integer>();
+        final Map<String, Set<Integer>> fuzzyTermRows = new HashMap<String, Set<Integer>>();
+        final List<TokenEntry> primaryEntries = new ArrayList<TokenEntry>();
+        final List<TokenEntry> secondaryEntries = new ArrayList<TokenEntry>();
+        final Set<String> rowTokens = new HashSet<String>();
+        long size = 0;
+
+        Cursor cursor = null;
+        try {
+            cursor = database.query(Tables.TABLE_PREFS_INDEX, columns,
+                    IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                    new String[] { locale }, null, null, IndexColumns.DATA_RANK);
+
+            while (cursor.moveToNext()) {
+                final int row = rows.size();
+                final String[] values = new String[selectCount];
+                size += OBJECT_OVERHEAD + 4 * selectCount;
+                for (int n = 0; n < selectCount; n++) {
+                    values[n] = cursor.getString(n);
+                    size += sizeOf(values[n]);
+                }
+                rows.add(values);
+                ranks.add(parseRank(values[0]));
+
+                rowTokens.clear();
+                for (int n = 0; n < primaryCount; n++) {
+                    tokenize(cursor.getString(selectCount + n), rowTokens);
+                }
+                size += addTokenEntries(rowTokens, row, primaryEntries);
+                addFuzzyTerms(rowTokens, row, fuzzyTermRows);
+
+                rowTokens.clear();
+                for (int n = 0; n < secondaryCount; n++) {
+                    tokenize(cursor.getString(selectCount + primaryCount + n), rowTokens);
+                }
+                size += addTokenEntries(rowTokens, row, secondaryEntries);
+
+                if (size > memoryBudget) {
+                    Log.d(LOG_TAG, "Index for locale '" + locale + "' does not fit in " +
+                            memoryBudget + " bytes");
+                    return null;
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        Collections.sort(primaryEntries);
+        Collections.sort(secondaryEntries);
+
+        final FuzzyTermMatcher fuzzyTermMatcher = new FuzzyTermMatcher(fuzzyTermRows);
+        size += fuzzyTermMatcher.getEstimatedSize();
+        if (size > memoryBudget) {
+            Log.d(LOG_TAG, "Index for locale '" + locale + "' does not fit in " +
+                    memoryBudget + " bytes");
+            return null;
+        }
+
+        final int rowCount = ranks.size();
+        final int[] rankArray = new int[rowCount];
+        for (int n = 0; n < rowCount; n++) {
+            rankArray[n] = ranks.get(n);
+        }
+
+        return new PrefixSearchIndex(locale, selectColumns,
+                rows.toArray(new String[rowCount][]), rankArray, primaryEntries,
+                secondaryEntries, fuzzyTermMatcher, size);
+    }
+
+    /**
+     * Set the saved queries, used for ranking the results like the ones that have been
+     * searched before.
+     */
+    void setSavedQueries(List<String> queries) {
+        final List<String> result = new ArrayList<String>(queries.size());
+        for (String query : queries) {
+            if (isSingleTerm(query)) {
+                result.add(toLowerCaseAscii(query));
+            }
+        }
+        mSavedQueries = result.toArray(new String[result.size()]);
+    }
+
+    synchronized void addSavedQuery(String query) {
+        if (!isSingleTerm(query)) {
+            return;
+        }
+        final String lowerCaseQuery = toLowerCaseAscii(query);
+        final String[] savedQueries = mSavedQueries;
+        final List<String> result = new ArrayList<String>(savedQueries.length + 1);
+        result.add(lowerCaseQuery);
+        for (String savedQuery : savedQueries) {
+            if (!savedQuery.equals(lowerCaseQuery)) {
+                result.add(savedQuery);
+            }
+        }
+        mSavedQueries = result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @return true if the query can be answered by this snapshot.
+     */
+    boolean canSearch(String query, String locale) {
+        return mLocale.equals(locale) && isSingleTerm(query);
+    }
+
+    String getLocale() {
+        return mLocale;
+    }
+
+    long getEstimatedSize() {
+        return mEstimatedSize;
+    }
+
+    int getRowCount() {
+        return mRows.length;
+    }
+
+    /**
+     * Search the rows having a term starting with the query. The rows matching the primary
+     * columns come first, ordered by score (see {@link #getScore}), then the ones matching only
+     * the secondary columns, ordered by rank.
+     */
+    Cursor search(String query) {
+        final String prefix = toLowerCaseAscii(query);
+        final int rowCount = mRows.length;
+
+        final boolean[] primary = new boolean[rowCount];
+        int primaryCount = markRows(mPrimaryTokens, mPrimaryTokenRows, prefix, primary);
+
+        final boolean[] secondary = new boolean[rowCount];
+        final int secondaryCount = markRows(mSecondaryTokens, mSecondaryTokenRows, prefix,
+                secondary);
+
+        final int[] distances = new int[rowCount];
+        Arrays.fill(distances, -1);
+        final String normalizedQuery = Index.normalizeString(query);
+        if (normalizedQuery.length() >= MIN_FUZZY_QUERY_LENGTH) {
+            final int maxDistance = (normalizedQuery.length() >= TWO_TYPOS_QUERY_LENGTH) ? 2 : 1;
+            mFuzzyTermMatcher.match(normalizedQuery, maxDistance,
+                    System.nanoTime() + FUZZY_MATCH_BUDGET_NANOS, distances);
+        }
+
+        final int[] savedQueryMatches = getSavedQueryMatches(prefix);
+
+        final List<ScoredRow> primaryRows = new ArrayList<ScoredRow>();
+        for (int n = 0; n < rowCount; n++) {
+            if (primary[n]) {
+                primaryRows.add(new ScoredRow(n, getScore(n, 0, savedQueryMatches)));
+            } else if (distances[n] >= 0) {
+                primary[n] = true;
+                primaryRows.add(new ScoredRow(n, getScore(n, distances[n], savedQueryMatches)));
+            }
+        }
+        // Stable sort, rows having the same score stay ordered by rank
+        Collections.sort(primaryRows);
+        primaryCount = primaryRows.size();
+
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames,
+                primaryCount + secondaryCount);
+        for (int n = 0; n < primaryCount; n++) {
+            cursor.addRow(mRows[primaryRows.get(n).row]);
+        }
+        if (secondaryCount > 0) {
+            for (int n = 0; n < rowCount; n++) {
+                if (secondary[n] && !primary[n]) {
+                    cursor.addRow(mRows[n]);
+                }
+            }
+        }
+        return cursor;
+    }
+
+    private static class ScoredRow implements Comparable<ScoredRow> {
+        public final int row;
+        public final int score;
+
+        public ScoredRow(int row, int score) {
+            this.row = row;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredRow other) {
+            return (score < other.score) ? -1 : ((score == other.score) ? 0 : 1);
+        }
+    }
+
+    /**
+     * The score of a row, the lower the better: its rank, plus a penalty for each typo, minus a
+     * bonus for each saved query leading to it.
+     */
+    private int getScore(int row, int distance, int[] savedQueryMatches) {
+        final int bonus = Math.min(MAX_SAVED_QUERY_BONUS,
+                savedQueryMatches[row] * SAVED_QUERY_BONUS);
+        return mRanks[row] + distance * TYPO_PENALTY - bonus;
+    }
+
+    /**
+     * @return for each row, the number of saved queries starting with the prefix and matching
+     *         the primary columns of the row.
+     */
+    private int[] getSavedQueryMatches(String prefix) {
+        final int rowCount = mRows.length;
+        final int[] result = new int[rowCount];
+        final String[] savedQueries = mSavedQueries;
+        final boolean[] marks = new boolean[rowCount];
+        for (String savedQuery : savedQueries) {
+            if (!savedQuery.startsWith(prefix)) {
+                continue;
+            }
+            Arrays.fill(marks, false);
+            if (markRows(mPrimaryTokens, mPrimaryTokenRows, savedQuery, marks) == 0) {
+                continue;
+            }
+            for (int n = 0; n < rowCount; n++) {
+                if (marks[n]) {
+                    result[n]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int markRows(String[] tokens, int[] tokenRows, String prefix,
+            boolean[] marks) {
+        int count = 0;
+        final int size = tokens.length;
+        for (int n = lowerBound(tokens, prefix); n < size && tokens[n].startsWith(prefix); n++) {
+            final int row = tokenRows[n];
+            if (!marks[row]) {
+                marks[row] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int lowerBound(String[] tokens, String value) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (tokens[middle].compareTo(value) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long addTokenEntries(Set<String> tokens, int row, List<TokenEntry> entries) {
+        long size = 0;
+        for (String token : tokens) {
+            entries.add(new TokenEntry(token, row));
+            size += sizeOf(token) + 4;
+        }
+        return size;
+    }
+
+    private static void addFuzzyTerms(Set<String> tokens, int row,
+            Map<String, Set<Integer>> termRows) {
+        for (String token : tokens) {
+            final String term = Index.normalizeString(token);
+            if (term.length() == 0) {
+                continue;
+            }
+            Set<Integer> rows = termRows.get(term);
+            if (rows == null) {
+                rows = new HashSet<Integer>();
+                termRows.put(term, rows);
+            }
+            rows.add(row);
+        }
+    }
+
+    private static int parseRank(String value) {
+        try {
+            return (value != null) ? Integer.parseInt(value) : Ranking.RANK_OTHERS;
+        } catch (NumberFormatException e) {
+            return Ranking.RANK_OTHERS;
+        }
+    }
+
+    private static long sizeOf(String value) {
+        return (value == null) ? 0 : OBJECT_OVERHEAD * 2 + 2 * value.length();
+    }
+
+    /**
+     * Split a value into terms the way the FTS4 "simple" tokenizer does: a term is a run of
+     * ASCII alphanumeric characters or characters greater than or equal to 128, and only ASCII
+     * characters are folded to lower case.
+     */
+    static void tokenize(String value, Set<String> outTokens) {
+        if (value == null) {
+            return;
+        }
+        final int length = value.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isTokenChar = (n < length) && isTokenChar(value.charAt(n));
+            if (isTokenChar && start < 0) {
+                start = n;
+            } else if (!isTokenChar && start >= 0) {
+                outTokens.add(toLowerCaseAscii(value.substring(start, n)));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * @return true if the query is a single term for the FTS4 "simple" tokenizer.
+     */
+    static boolean isSingleTerm(String query) {
+        if (query == null || query.length() == 0) {
+            return false;
+        }
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            if (!isTokenChar(query.charAt(n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    private static String toLowerCaseAscii(String value) {
+        final int length = value.length();
+        StringBuilder sb = null;
+        for (int n = 0; n < length; n++) {
+            final char c = value.charAt(n);
+            if (c >= 'A' && c <= 'Z') {
+                if (sb == null) {
+                    sb = new StringBuilder(value);
+                }
+                sb.setCharAt(n, (char) (c + ('a' - 'A')));
+            }
+        }
+        return (sb != null) ? sb.toString() : value;
+    }
+}
@@ -231,8 +231,9 @@ public class ChartDataUsageView extends ChartView {
             mSweepLimit.setValidRange(0L, newMax);
 
             if (changed) {
-                mSeries.invalidatePath();
-                mDetailSeries.invalidatePath();
+                // only vertical scale changed, so series can reuse their paths
+                mSeries.invalidateScale();
+                mDetailSeries.invalidateScale();
             }
 
             mGrid.invalidate();
@@ -24,6 +24,7 @@ import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
@@ -36,9 +37,15 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.ArrayList;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
+ * <p>
+ * Paths are decimated to at most two points per horizontal pixel, and cached
+ * per bounds and size. When only the vertical axis changes, such as while a
+ * sweep is dragged, the cached path is scaled instead of generated again.
  */
 public class ChartNetworkSeriesView extends View {
     private static final String TAG = "ChartNetworkSeriesView";
@@ -46,6 +53,9 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    /** Number of paths kept for recently shown bounds. */
+    private static final int MAX_CACHED_PATHS = 4;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -56,9 +66,12 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
-    private Path mPathStroke;
-    private Path mPathFill;
-    private Path mPathEstimate;
+    /** Cached paths, most recently used first. */
+    private final ArrayList<SeriesPath> mPaths = new ArrayList<SeriesPath>();
+    private SeriesPath mPath;
+
+    private final Matrix mPathMatrix = new Matrix();
+    private final Path mPathEstimateScaled = new Path();
 
     private int mSafeRegion;
 
@@ -68,7 +81,6 @@ public class ChartNetworkSeriesView extends View {
     /** Series will be extended to reach this end time. */
     private long mEndTime = Long.MIN_VALUE;
 
-    private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
 
@@ -101,10 +113,78 @@ public class ChartNetworkSeriesView extends View {
         setWillNotDraw(false);
 
         a.recycle();
+    }
+
+    /**
+     * Outline of the series for a specific set of bounds and size, along with
+     * the vertical mapping it was generated with.
+     */
+    private static class SeriesPath {
+        long start;
+        long end;
+        long endTime;
+        int width;
+        int height;
+
+        final Path stroke = new Path();
+        final Path fill = new Path();
+        final Path estimate = new Path();
+
+        long max;
+        long maxEstimate;
+
+        /** Points of zero and {@link #refValue} when generated. */
+        long refValue;
+        float zeroPoint;
+        float refPoint;
+
+        boolean matches(long start, long end, long endTime, int width, int height) {
+            return this.start == start && this.end == end && this.endTime == endTime
+                    && this.width == width && this.height == height;
+        }
+    }
+
+    /**
+     * Adds points to the stroke and fill paths, keeping only the first and last
+     * point of each horizontal pixel. Since the series is cumulative, they are
+     * also the lowest and highest points of that pixel.
+     */
+    private static class DecimatingBuilder {
+        private final Path mStroke;
+        private final Path mFill;
+
+        private int mColumn = Integer.MIN_VALUE;
+        private boolean mPending;
+        private float mPendingX;
+        private float mPendingY;
+
+        DecimatingBuilder(Path stroke, Path fill) {
+            mStroke = stroke;
+            mFill = fill;
+        }
+
+        void lineTo(float x, float y) {
+            final int column = (int) Math.floor(x);
+            if (column == mColumn) {
+                // hold until we leave this pixel, only last point is kept
+                mPending = true;
+                mPendingX = x;
+                mPendingY = y;
+                return;
+            }
+            flush();
+            mColumn = column;
+            mStroke.lineTo(x, y);
+            mFill.lineTo(x, y);
+        }
 
-        mPathStroke = new Path();
-        mPathFill = new Path();
-        mPathEstimate = new Path();
+        void flush() {
+            if (mPending) {
+                mStroke.lineTo(mPendingX, mPendingY);
+                mFill.lineTo(mPendingX, mPendingY);
+                mPending = false;
+            }
+        }
     }
 
     void init(ChartAxis horiz, ChartAxis vert) {
@@ -143,6 +223,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPaths.clear();
         invalidatePath();
         invalidate();
     }
@@ -157,40 +238,128 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public void invalidatePath() {
-        mPathValid = false;
+        mPath = null;
         mMax = 0;
         invalidate();
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
+     * Redraw after only the bounds of the vertical axis changed, scaling the
+     * current path instead of generating it again.
+     */
+    public void invalidateScale() {
+        invalidate();
+    }
+
+    /**
+     * Find the cached path matching the current bounds and size, or generate
+     * it when missing.
+     */
+    private void ensurePath() {
+        final int width = getWidth();
+        final int height = getHeight();
+
+        if (mPath == null || !mPath.matches(mStart, mEnd, mEndTime, width, height)) {
+            mPath = null;
+            for (int i = 0; i < mPaths.size(); i++) {
+                final SeriesPath path = mPaths.get(i);
+                if (path.matches(mStart, mEnd, mEndTime, width, height)) {
+                    mPaths.remove(i);
+                    mPaths.add(0, path);
+                    mPath = path;
+                    break;
+                }
+            }
+        }
+
+        if (mPath != null && !updatePathMatrix(mPath)) {
+            // vertical axis isn't linear, so we can't scale existing path
+            mPaths.remove(mPath);
+            mPath = null;
+        }
+
+        if (mPath == null) {
+            final SeriesPath path;
+            if (mPaths.size() < MAX_CACHED_PATHS) {
+                path = new SeriesPath();
+            } else {
+                path = mPaths.remove(mPaths.size() - 1);
+            }
+            generatePath(path, width, height);
+            mPaths.add(0, path);
+            mPath = path;
+            mPathMatrix.reset();
+        }
+
+        mMax = mPath.max;
+        mMaxEstimate = mPath.maxEstimate;
+    }
+
+    /**
+     * Build {@link #mPathMatrix} mapping the vertical axis the path was
+     * generated with onto the current one.
+     *
+     * @return false when the mapping can't be expressed as a scale.
+     */
+    private boolean updatePathMatrix(SeriesPath path) {
+        final float zeroPoint = mVert.convertToPoint(0);
+        final float refPoint = mVert.convertToPoint(path.refValue);
+        if (zeroPoint == path.zeroPoint && refPoint == path.refPoint) {
+            mPathMatrix.reset();
+            return true;
+        }
+
+        final float midPoint = mVert.convertToPoint(path.refValue / 2);
+        final float genRange = path.refPoint - path.zeroPoint;
+        if (genRange == 0 || Math.abs(midPoint - (zeroPoint + refPoint) / 2) > 0.5f) {
+            return false;
+        }
+
+        final float scale = (refPoint - zeroPoint) / genRange;
+        mPathMatrix.setScale(1, scale);
+        mPathMatrix.postTranslate(0, zeroPoint - path.zeroPoint * scale);
+        return true;
+    }
+
+    /**
+     * Erase the given {@link SeriesPath} and generate series outline based on
      * currently bound {@link NetworkStatsHistory} data.
      */
-    private void generatePath() {
+    private void generatePath(SeriesPath path, int width, int height) {
         if (LOGD) Log.d(TAG, "generatePath()");
 
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+        final Path pathStroke = path.stroke;
+        final Path pathFill = path.fill;
+        final Path pathEstimate = path.estimate;
+
+        pathStroke.reset();
+        pathFill.reset();
+        pathEstimate.reset();
+
+        path.start = mStart;
+        path.end = mEnd;
+        path.endTime = mEndTime;
+        path.width = width;
+        path.height = height;
+        path.max = 0;
+        path.maxEstimate = 0;
+        path.refValue = 1;
+        path.zeroPoint = mVert.convertToPoint(0);
+        path.refPoint = mVert.convertToPoint(path.refValue);
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
         float lastX = 0;
         float lastY = height;
         long lastTime = mHoriz.convertToValue(lastX);
 
         // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        pathStroke.moveTo(lastX, lastY);
+        pathFill.moveTo(lastX, lastY);
+        final DecimatingBuilder builder = new DecimatingBuilder(pathStroke, pathFill);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -221,43 +390,47 @@ public class ChartNetworkSeriesView extends View {
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                builder.lineTo(startX, startY);
             }
 
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            builder.lineTo(endX, endY);
 
             lastX = endX;
             lastY = endY;
             lastTime = endTime;
         }
 
+        builder.flush();
+
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
 
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
+            pathStroke.lineTo(lastX, lastY);
+            pathFill.lineTo(lastX, lastY);
         }
 
         if (LOGD) {
             final RectF bounds = new RectF();
-            mPathFill.computeBounds(bounds, true);
+            pathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
                     + totalData);
         }
 
         // drop to bottom of graph from current location
-        mPathFill.lineTo(lastX, height);
-        mPathFill.lineTo(0, height);
+        pathFill.lineTo(lastX, height);
+        pathFill.lineTo(0, height);
 
-        mMax = totalData;
+        path.max = totalData;
+        if (totalData > 0) {
+            path.refValue = totalData;
+            path.refPoint = mVert.convertToPoint(totalData);
+        }
 
         if (ESTIMATE_ENABLED) {
             // build estimated data
-            mPathEstimate.moveTo(lastX, lastY);
+            pathEstimate.moveTo(lastX, lastY);
 
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
@@ -282,13 +455,11 @@ public class ChartNetworkSeriesView extends View {
                 lastX = mHoriz.convertToPoint(lastTime + futureTime);
                 lastY = mVert.convertToPoint(totalData);
 
-                mPathEstimate.lineTo(lastX, lastY);
+                pathEstimate.lineTo(lastX, lastY);
             }
 
-            mMaxEstimate = totalData;
+            path.maxEstimate = totalData;
         }
-
-        invalidate();
     }
 
     public void setEndTime(long endTime) {
@@ -319,14 +490,14 @@ public class ChartNetworkSeriesView extends View {
     protected void onDraw(Canvas canvas) {
         int save;
 
-        if (!mPathValid) {
-            generatePath();
-        }
+        ensurePath();
 
         if (mEstimateVisible) {
+            // scale the path rather than the canvas to keep the dashes intact
+            mPath.estimate.transform(mPathMatrix, mPathEstimateScaled);
             save = canvas.save();
             canvas.clipRect(0, 0, getWidth(), getHeight());
-            canvas.drawPath(mPathEstimate, mPaintEstimate);
+            canvas.drawPath(mPathEstimateScaled, mPaintEstimate);
             canvas.restoreToCount(save);
         }
 
@@ -334,7 +505,8 @@ public class ChartNetworkSeriesView extends View {
 
         save = canvas.save();
         canvas.clipRect(mSafeRegion, 0, getWidth(), getHeight() - mSafeRegion);
-        canvas.drawPath(mPathFill, paintFill);
+        canvas.concat(mPathMatrix);
+        canvas.drawPath(mPath.fill, paintFill);
         canvas.restoreToCount(save);
     }
 }
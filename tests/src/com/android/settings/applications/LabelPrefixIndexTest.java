@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+public class LabelPrefixIndexTest extends AndroidTestCase {
+
+    private static final String[] LABELS = {
+            "Google Play Store",
+            "Play Music",
+            "Maps",
+            "Caf\u00e9 Menu Manager",
+            "Play",
+            "Music  Player",
+            "Calculator ",
+            "Maps",
+            " Launcher",
+    };
+
+    private ArrayList<ApplicationsState.AppEntry> mEntries;
+    private ManageApplications.LabelPrefixIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final AppEntryCache cache = new AppEntryCache(getContext());
+        mEntries = new ArrayList<ApplicationsState.AppEntry>();
+        for (int i=0; i<LABELS.length; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/nonexistent/app" + i + ".apk";
+            final ApplicationsState.AppEntry entry
+                    = new ApplicationsState.AppEntry(getContext(), info, i, cache);
+            entry.label = LABELS[i];
+            mEntries.add(entry);
+        }
+        mIndex = new ManageApplications.LabelPrefixIndex(mEntries);
+    }
+
+    /**
+     * The rule the index replaces: the label or one of its words starts with the prefix.
+     */
+    private ArrayList<ApplicationsState.AppEntry> findByScanning(String prefix) {
+        final String spacePrefix = " " + prefix;
+        final ArrayList<ApplicationsState.AppEntry> result
+                = new ArrayList<ApplicationsState.AppEntry>();
+        for (ApplicationsState.AppEntry entry : mEntries) {
+            final String nlabel = entry.getNormalizedLabel();
+            if (nlabel.startsWith(prefix) || nlabel.indexOf(spacePrefix) != -1) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private void assertSameAsScanning(String prefix) {
+        assertEquals("prefix '" + prefix + "'", findByScanning(prefix), mIndex.find(prefix));
+    }
+
+    public void testFindMatchesTheStartOfTheLabelAndOfItsWords() throws Exception {
+        final ArrayList<ApplicationsState.AppEntry> result = mIndex.find("pla");
+        assertEquals(4, result.size());
+        assertSame(mEntries.get(0), result.get(0));
+        assertSame(mEntries.get(1), result.get(1));
+        assertSame(mEntries.get(4), result.get(2));
+        assertSame(mEntries.get(5), result.get(3));
+
+        assertTrue(mIndex.find("usic").isEmpty());
+        assertTrue(mIndex.find("store ").isEmpty());
+    }
+
+    public void testFindMatchesTheNormalizedLabels() throws Exception {
+        assertEquals(1, mIndex.find("cafe").size());
+        assertTrue(mIndex.find("Cafe").isEmpty());
+    }
+
+    public void testFindReturnsEachEntryOnce() throws Exception {
+        // "Maps" twice, and two words of "Cafe Menu Manager" start with "m"
+        assertEquals(5, mIndex.find("m").size());
+        assertEquals(2, mIndex.find("maps").size());
+    }
+
+    public void testFindMatchesTheSameEntriesAsScanning() throws Exception {
+        assertSameAsScanning("");
+        assertSameAsScanning(" ");
+        assertSameAsScanning("  ");
+        assertSameAsScanning("z");
+        assertSameAsScanning("play music");
+        assertSameAsScanning("zzzz");
+        for (ApplicationsState.AppEntry entry : mEntries) {
+            final String nlabel = entry.getNormalizedLabel();
+            for (int start=0; start<nlabel.length(); start++) {
+                for (int end=start+1; end<=nlabel.length(); end++) {
+                    assertSameAsScanning(nlabel.substring(start, end));
+                }
+            }
+        }
+    }
+}
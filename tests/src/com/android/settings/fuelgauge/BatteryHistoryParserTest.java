@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats.HistoryItem;
+import android.test.AndroidTestCase;
+
+public class BatteryHistoryParserTest extends AndroidTestCase {
+
+    private BatteryHistoryParser mParser;
+    private final HistoryItem mRec = new HistoryItem();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParser = new BatteryHistoryParser();
+        mParser.reset();
+    }
+
+    private void addUpdate(long time, int level, int states, int states2) {
+        mRec.clear();
+        mRec.cmd = HistoryItem.CMD_UPDATE;
+        mRec.time = time;
+        mRec.batteryLevel = (byte) level;
+        mRec.states = states;
+        mRec.states2 = states2;
+        mParser.addRecord(mRec);
+    }
+
+    private void addCommand(byte cmd, long time, long currentTime) {
+        mRec.clear();
+        mRec.cmd = cmd;
+        mRec.time = time;
+        mRec.currentTime = currentTime;
+        mParser.addRecord(mRec);
+    }
+
+    public void testMergesDeltaRecordsChangingNothingCharted() throws Exception {
+        addUpdate(0, 100, HistoryItem.STATE_SCREEN_ON_FLAG, 0);
+        addUpdate(10, 100, HistoryItem.STATE_SCREEN_ON_FLAG | HistoryItem.STATE_WAKE_LOCK_FLAG,
+                0);
+        addUpdate(20, 99, HistoryItem.STATE_SCREEN_ON_FLAG, 0);
+        addUpdate(30, 99, HistoryItem.STATE_SCREEN_ON_FLAG,
+                HistoryItem.STATE2_WIFI_RUNNING_FLAG);
+
+        assertEquals(2, mParser.mNumEvents);
+        assertEquals(2, mParser.mNumDataEvents);
+        assertEquals(0, mParser.mTimes[0]);
+        assertEquals(100, mParser.mLevels[0]);
+        assertEquals(20, mParser.mTimes[1]);
+        assertEquals(99, mParser.mLevels[1]);
+        assertEquals(HistoryItem.STATE_SCREEN_ON_FLAG, mParser.mStates[1]);
+        assertEquals(0, mParser.mStates2[1]);
+
+        // The span and the aggregated states still include the merged records
+        assertEquals(0, mParser.mHistStart);
+        assertEquals(30, mParser.mHistDataEnd);
+        assertEquals(HistoryItem.STATE_SCREEN_ON_FLAG | HistoryItem.STATE_WAKE_LOCK_FLAG,
+                mParser.mAggrStates);
+        assertEquals(HistoryItem.STATE2_WIFI_RUNNING_FLAG, mParser.mAggrStates2);
+    }
+
+    public void testKeepsDeltaRecordsChangingChartedStates() throws Exception {
+        addUpdate(0, 50, 0, 0);
+        addUpdate(10, 50, HistoryItem.STATE_GPS_ON_FLAG, 0);
+        addUpdate(20, 50, HistoryItem.STATE_GPS_ON_FLAG,
+                HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK);
+
+        assertEquals(3, mParser.mNumEvents);
+        assertEquals(HistoryItem.STATE_GPS_ON_FLAG, mParser.mStates[1]);
+        assertEquals(HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK, mParser.mStates2[2]);
+    }
+
+    public void testOtherCommandsBreakMerging() throws Exception {
+        addUpdate(0, 80, 0, 0);
+        addCommand(HistoryItem.CMD_CURRENT_TIME, 10, 1000000);
+        addUpdate(20, 80, 0, 0);
+        addCommand(HistoryItem.CMD_CURRENT_TIME, 30, 1000020);
+
+        assertEquals(4, mParser.mNumEvents);
+        // The last command is after the last delta record
+        assertEquals(3, mParser.mNumDataEvents);
+        assertTrue(mParser.isDeltaData(0));
+        assertFalse(mParser.isDeltaData(1));
+        assertTrue(mParser.isDeltaData(2));
+        assertEquals(1000000, mParser.mCurrentTimes[1]);
+    }
+
+    public void testSkipsOverflows() throws Exception {
+        addUpdate(0, 80, 0, 0);
+        addCommand(HistoryItem.CMD_OVERFLOW, 10, 0);
+        addUpdate(20, 80, 0, 0);
+
+        assertEquals(1, mParser.mNumEvents);
+        assertEquals(1, mParser.mNumDataEvents);
+        assertEquals(20, mParser.mHistDataEnd);
+    }
+
+    public void testComputesTheWallTimeOfTheStart() throws Exception {
+        addUpdate(1000, 80, 0, 0);
+        addCommand(HistoryItem.CMD_CURRENT_TIME, 3000, 500000);
+
+        assertEquals(1000, mParser.mHistStart);
+        assertEquals(498000, mParser.mStartWallTime);
+        assertEquals(500000, mParser.mLastWallTime);
+        assertEquals(3000, mParser.mLastRealtime);
+    }
+
+    public void testGrowsPastTheInitialCapacity() throws Exception {
+        final int count = 1000;
+        for (int i=0; i<count; i++) {
+            addUpdate(i, i % 100, 0, 0);
+        }
+
+        assertEquals(count, mParser.mNumEvents);
+        assertEquals(count, mParser.mNumDataEvents);
+        assertEquals(count - 1, mParser.mTimes[count - 1]);
+        assertEquals((count - 1) % 100, mParser.mLevels[count - 1]);
+    }
+
+    public void testResetForgetsThePreviousHistory() throws Exception {
+        addUpdate(0, 80, HistoryItem.STATE_SCREEN_ON_FLAG, 0);
+        mParser.reset();
+        addUpdate(100, 80, 0, 0);
+
+        assertEquals(1, mParser.mNumEvents);
+        assertEquals(100, mParser.mHistStart);
+        assertEquals(0, mParser.mAggrStates);
+    }
+}
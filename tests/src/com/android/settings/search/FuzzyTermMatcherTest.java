@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class FuzzyTermMatcherTest extends AndroidTestCase {
+
+    private static void addTerm(Map<String, Set<Integer>> termRows, String term,
+            Integer... rows) {
+        termRows.put(term, new HashSet<Integer>(Arrays.asList(rows)));
+    }
+
+    private static int[] newDistances(int rowCount) {
+        final int[] distances = new int[rowCount];
+        Arrays.fill(distances, -1);
+        return distances;
+    }
+
+    public void testGetPrefixDistanceOfAPrefix() throws Exception {
+        assertEquals(0, FuzzyTermMatcher.getPrefixDistance("wif", "wifi", 1));
+        assertEquals(0, FuzzyTermMatcher.getPrefixDistance("wifi", "wifi", 0));
+    }
+
+    public void testGetPrefixDistanceWithOneTypo() throws Exception {
+        // Substitution, deletion and insertion
+        assertEquals(1, FuzzyTermMatcher.getPrefixDistance("wify", "wifi", 1));
+        assertEquals(1, FuzzyTermMatcher.getPrefixDistance("bletooth", "bluetooth", 1));
+        assertEquals(1, FuzzyTermMatcher.getPrefixDistance("bluuet", "bluetooth", 1));
+        assertEquals(-1, FuzzyTermMatcher.getPrefixDistance("wify", "wifi", 0));
+    }
+
+    public void testGetPrefixDistanceWithTwoTypos() throws Exception {
+        assertEquals(2, FuzzyTermMatcher.getPrefixDistance("bletoth", "bluetooth", 2));
+        assertEquals(-1, FuzzyTermMatcher.getPrefixDistance("bletoth", "bluetooth", 1));
+        assertEquals(-1, FuzzyTermMatcher.getPrefixDistance("blxtxxh", "bluetooth", 2));
+    }
+
+    public void testGetPrefixDistanceOfAShorterTerm() throws Exception {
+        assertEquals(1, FuzzyTermMatcher.getPrefixDistance("datas", "data", 1));
+        assertEquals(-1, FuzzyTermMatcher.getPrefixDistance("datas", "da", 2));
+    }
+
+    public void testMatchKeepsTheSmallestDistanceOfEachRow() throws Exception {
+        final Map<String, Set<Integer>> termRows = new HashMap<String, Set<Integer>>();
+        addTerm(termRows, "wifi", 0);
+        addTerm(termRows, "wireless", 1);
+        addTerm(termRows, "blue", 2);
+        addTerm(termRows, "bluetooth", 2, 3);
+        final FuzzyTermMatcher matcher = new FuzzyTermMatcher(termRows);
+
+        int[] distances = newDistances(4);
+        assertEquals(1, matcher.match("wify", 1, Long.MAX_VALUE, distances));
+        assertEquals(1, distances[0]);
+        assertEquals(-1, distances[1]);
+        assertEquals(-1, distances[2]);
+        assertEquals(-1, distances[3]);
+
+        distances = newDistances(4);
+        assertEquals(2, matcher.match("bluet", 1, Long.MAX_VALUE, distances));
+        assertEquals(-1, distances[0]);
+        assertEquals(-1, distances[1]);
+        assertEquals(0, distances[2]);
+        assertEquals(0, distances[3]);
+    }
+
+    public void testMatchStopsAtTheDeadline() throws Exception {
+        final Map<String, Set<Integer>> termRows = new HashMap<String, Set<Integer>>();
+        addTerm(termRows, "wifi", 0);
+        final FuzzyTermMatcher matcher = new FuzzyTermMatcher(termRows);
+
+        final int[] distances = newDistances(1);
+        assertEquals(0, matcher.match("wifi", 1, System.nanoTime() - 1, distances));
+        assertEquals(-1, distances[0]);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+public class PrefixSearchIndexTest extends AndroidTestCase {
+
+    private static final String LOCALE = "en_US";
+
+    private static final String[] SELECT_COLUMNS = {
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE
+    };
+
+    private static final String[] PRIMARY_COLUMNS = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String[] SECONDARY_COLUMNS = {
+            IndexColumns.DATA_SUMMARY_ON
+    };
+
+    private SQLiteDatabase mDatabase;
+    private PrefixSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE " + Tables.TABLE_PREFS_INDEX + "(" +
+                IndexColumns.LOCALE + " TEXT, " +
+                IndexColumns.DATA_RANK + " INTEGER, " +
+                IndexColumns.DATA_TITLE + " TEXT, " +
+                IndexColumns.DATA_KEYWORDS + " TEXT, " +
+                IndexColumns.DATA_SUMMARY_ON + " TEXT, " +
+                IndexColumns.ENABLED + " INTEGER)");
+
+        insertRow(LOCALE, 1, "Bluetooth", null, "Connect to wireless devices", true);
+        insertRow(LOCALE, 2, "Wi-Fi", "wireless, network", null, true);
+        insertRow(LOCALE, 3, "Date & time", null, null, true);
+        insertRow(LOCALE, 4, "Display", null, "Brightness, wallpaper", true);
+        insertRow(LOCALE, 5, "Data usage", null, null, true);
+        insertRow(LOCALE, 6, "Location", null, null, false);
+        insertRow("fr_FR", 1, "Affichage", null, null, true);
+
+        mIndex = PrefixSearchIndex.build(mDatabase, LOCALE, SELECT_COLUMNS, PRIMARY_COLUMNS,
+                SECONDARY_COLUMNS, Long.MAX_VALUE);
+        assertNotNull(mIndex);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    private void insertRow(String locale, int rank, String title, String keywords,
+            String summary, boolean enabled) {
+        final ContentValues values = new ContentValues();
+        values.put(IndexColumns.LOCALE, locale);
+        values.put(IndexColumns.DATA_RANK, rank);
+        values.put(IndexColumns.DATA_TITLE, title);
+        values.put(IndexColumns.DATA_KEYWORDS, keywords);
+        values.put(IndexColumns.DATA_SUMMARY_ON, summary);
+        values.put(IndexColumns.ENABLED, enabled ? 1 : 0);
+        mDatabase.insertOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+    }
+
+    private static void assertTitles(Cursor cursor, String... titles) {
+        try {
+            assertEquals(titles.length, cursor.getCount());
+            for (String title : titles) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(title, cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBuildKeepsOnlyTheEnabledRowsOfTheLocale() throws Exception {
+        assertEquals(LOCALE, mIndex.getLocale());
+        assertEquals(5, mIndex.getRowCount());
+        assertTitles(mIndex.search("loc"));
+        assertTitles(mIndex.search("aff"));
+    }
+
+    public void testBuildFailsOverTheMemoryBudget() throws Exception {
+        assertNull(PrefixSearchIndex.build(mDatabase, LOCALE, SELECT_COLUMNS, PRIMARY_COLUMNS,
+                SECONDARY_COLUMNS, 100));
+    }
+
+    public void testSearchMatchesTheStartOfAnyWord() throws Exception {
+        assertTitles(mIndex.search("us"), "Data usage");
+        assertTitles(mIndex.search("Tim"), "Date & time");
+        assertTitles(mIndex.search("fi"), "Wi-Fi");
+        assertTitles(mIndex.search("ag"));
+    }
+
+    public void testSearchOrdersPrimaryMatchesByRankBeforeSecondaryMatches() throws Exception {
+        assertTitles(mIndex.search("d"), "Date & time", "Display", "Data usage", "Bluetooth");
+        assertTitles(mIndex.search("wi"), "Wi-Fi", "Bluetooth");
+        assertTitles(mIndex.search("br"), "Display");
+    }
+
+    public void testSearchAllowsOneTypoFromThreeCharacters() throws Exception {
+        assertTitles(mIndex.search("xi"));
+        assertTitles(mIndex.search("dusp"), "Display");
+        assertTitles(mIndex.search("dusla"));
+    }
+
+    public void testSearchAllowsTwoTyposFromSixCharacters() throws Exception {
+        assertTitles(mIndex.search("duslay"), "Display");
+        assertTitles(mIndex.search("dusxay"));
+    }
+
+    public void testSearchIgnoresAccents() throws Exception {
+        assertTitles(mIndex.search("D\u00edsplay"), "Display");
+    }
+
+    public void testSearchRanksTyposAfterExactMatches() throws Exception {
+        // "Date & time" has a better rank but is one typo away
+        assertTitles(mIndex.search("data"), "Data usage", "Date & time");
+    }
+
+    public void testSearchRanksSavedQueriesFirst() throws Exception {
+        mIndex.setSavedQueries(Arrays.asList("display", "wi fi"));
+        assertTitles(mIndex.search("d"), "Display", "Date & time", "Data usage", "Bluetooth");
+
+        mIndex.addSavedQuery("Data");
+        assertTitles(mIndex.search("da"), "Data usage", "Date & time");
+    }
+
+    public void testCanSearch() throws Exception {
+        assertTrue(mIndex.canSearch("wifi", LOCALE));
+        assertFalse(mIndex.canSearch("wifi", "fr_FR"));
+        assertFalse(mIndex.canSearch("wi-fi", LOCALE));
+    }
+
+    public void testTokenize() throws Exception {
+        final Set<String> tokens = new HashSet<String>();
+        PrefixSearchIndex.tokenize("Wi-Fi & Bluetooth, 4G", tokens);
+        assertEquals(4, tokens.size());
+        assertTrue(tokens.contains("wi"));
+        assertTrue(tokens.contains("fi"));
+        assertTrue(tokens.contains("bluetooth"));
+        assertTrue(tokens.contains("4g"));
+
+        tokens.clear();
+        PrefixSearchIndex.tokenize("\u00c9cran", tokens);
+        assertTrue(tokens.contains("\u00c9cran"));
+
+        tokens.clear();
+        PrefixSearchIndex.tokenize(null, tokens);
+        assertTrue(tokens.isEmpty());
+    }
+
+    public void testIsSingleTerm() throws Exception {
+        assertTrue(PrefixSearchIndex.isSingleTerm("WiFi"));
+        assertTrue(PrefixSearchIndex.isSingleTerm("\u00e9cran"));
+        assertFalse(PrefixSearchIndex.isSingleTerm("wi-fi"));
+        assertFalse(PrefixSearchIndex.isSingleTerm("data usage"));
+        assertFalse(PrefixSearchIndex.isSingleTerm(""));
+        assertFalse(PrefixSearchIndex.isSingleTerm(null));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.INetworkStatsService;
+import android.net.INetworkStatsSession;
+import android.net.NetworkTemplate;
+import android.net.TrafficStats;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.DataUsageSummary.AppItem;
+import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.NetworkStatsCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Instrumentation measuring the time {@link ChartDataLoader} takes to load the history of an
+ * app against its number of uids, with the serial and the parallel collection:
+ *
+ * adb shell am instrument -w -r [-e iterations 5] \
+ *     com.android.settings.tests/.ChartDataLoaderBenchmark
+ *
+ * The uids are taken from the installed applications, and the stats cache is cleared before
+ * each load so that every load reads the stats.
+ */
+public class ChartDataLoaderBenchmark extends Instrumentation {
+
+    private static final String LOG_TAG = "ChartDataLoaderBenchmark";
+
+    private static final String ARGUMENT_ITERATIONS = "iterations";
+
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    private static final int[] UID_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    private int mIterations;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+
+        final String iterations = (arguments != null)
+                ? arguments.getString(ARGUMENT_ITERATIONS) : null;
+        mIterations = TextUtils.isEmpty(iterations) ? DEFAULT_ITERATIONS
+                : Integer.parseInt(iterations);
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        final Context context = getTargetContext();
+        final Bundle results = new Bundle();
+        final INetworkStatsService statsService = INetworkStatsService.Stub.asInterface(
+                ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
+        INetworkStatsSession session = null;
+        try {
+            session = statsService.openSession();
+            final NetworkTemplate template = NetworkTemplate.buildTemplateWifiWildcard();
+            final Integer[] uids = getUids(context);
+
+            for (int count : UID_COUNTS) {
+                if (count > uids.length) {
+                    break;
+                }
+                final AppItem app = new AppItem();
+                for (int i = 0; i < count; i++) {
+                    app.addUid(uids[i]);
+                }
+                final Bundle args = ChartDataLoader.buildArgs(template, app);
+                final long serial = measure(context, session, args, false);
+                final long parallel = measure(context, session, args, true);
+                Log.i(LOG_TAG, count + " uids: serial " + serial + " ms, parallel "
+                        + parallel + " ms");
+                results.putLong(count + "_uids_serial_ms", serial);
+                results.putLong(count + "_uids_parallel_ms", parallel);
+            }
+        } catch (RemoteException e) {
+            results.putString(Instrumentation.REPORT_KEY_STREAMRESULT,
+                    "Cannot read network stats: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+            return;
+        } finally {
+            ChartDataLoader.setParallelCollection(true);
+            TrafficStats.closeQuietly(session);
+        }
+
+        finish(Activity.RESULT_OK, results);
+    }
+
+    /**
+     * @return the median time in milliseconds to load the chart data of an app.
+     */
+    private long measure(Context context, INetworkStatsSession session, Bundle args,
+            boolean parallel) {
+        ChartDataLoader.setParallelCollection(parallel);
+        final long[] durations = new long[mIterations];
+        for (int n = 0; n < mIterations; n++) {
+            NetworkStatsCache.getInstance().invalidate();
+            final ChartDataLoader loader = new ChartDataLoader(context, session, args);
+            final long start = SystemClock.elapsedRealtime();
+            loader.loadInBackground();
+            durations[n] = SystemClock.elapsedRealtime() - start;
+        }
+        Arrays.sort(durations);
+        return durations.length > 0 ? durations[durations.length / 2] : 0;
+    }
+
+    private static Integer[] getUids(Context context) {
+        final TreeSet<Integer> uids = new TreeSet<Integer>();
+        for (ApplicationInfo info : context.getPackageManager().getInstalledApplications(0)) {
+            uids.add(info.uid);
+        }
+        return new ArrayList<Integer>(uids).toArray(new Integer[uids.size()]);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.settings.search.Index;
+import com.android.settings.search.IndexDatabaseHelper;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Instrumentation generating the prebuilt search index shipped in the Settings assets.
+ *
+ * It indexes the current locale and exports it into the output database, keeping the locales
+ * exported by previous runs. Run it once per locale of the product on a device running the
+ * target build:
+ *
+ * adb shell am instrument -w [-e output <path>] \
+ *     com.android.settings.tests/.PrebuiltSearchIndexGenerator
+ *
+ * then copy the output database to packages/apps/Settings/assets/search_index_prebuilt.db.
+ *
+ * The fingerprints of the resources only depend on the content of the apks, so rebuilding
+ * Settings with the asset keeps it valid. A resource whose content changes in a later build
+ * no longer matches its prebuilt fingerprint and is indexed on the device instead.
+ */
+public class PrebuiltSearchIndexGenerator extends Instrumentation {
+
+    private static final String LOG_TAG = "PrebuiltSearchIndexGenerator";
+
+    private static final String ARGUMENT_OUTPUT = "output";
+    private static final String OUTPUT_FILE_NAME = "search_index_prebuilt.db";
+
+    private static final long INDEXING_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long POLLING_INTERVAL_MS = 100;
+
+    private File mOutput;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+
+        final String output = (arguments != null) ? arguments.getString(ARGUMENT_OUTPUT) : null;
+        mOutput = (output != null) ? new File(output)
+                : new File(getTargetContext().getFilesDir(), OUTPUT_FILE_NAME);
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        final Context context = getTargetContext();
+        final String locale = Locale.getDefault().toString();
+        final Bundle results = new Bundle();
+
+        final Index index = Index.getInstance(context);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                index.update();
+            }
+        });
+
+        // The update is running in an AsyncTask, wait for it to be done
+        final long deadline = SystemClock.uptimeMillis() + INDEXING_TIMEOUT_MS;
+        SystemClock.sleep(POLLING_INTERVAL_MS);
+        while (!index.isAvailable() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(POLLING_INTERVAL_MS);
+        }
+        if (!index.isAvailable()) {
+            results.putString(Instrumentation.REPORT_KEY_STREAMRESULT,
+                    "Timed out while indexing locale " + locale + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+            return;
+        }
+
+        IndexDatabaseHelper.getInstance(context).exportIndex(mOutput, locale);
+        Log.i(LOG_TAG, "Exported locale " + locale + " to " + mOutput);
+
+        results.putString(Instrumentation.REPORT_KEY_STREAMRESULT,
+                "Exported locale " + locale + " to " + mOutput + "\n");
+        finish(Activity.RESULT_OK, results);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.tests;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.StartupTrace;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Instrumentation launching the main Settings screens, once cold and then several times warm,
+ * and reporting the launch times with the percentiles of the {@link StartupTrace} sections.
+ *
+ * The first launch of a screen is cold: the process has just been started by the
+ * instrumentation, so the classes and resources of the screen are not loaded yet. Run one
+ * screen per instrumentation to get a cold launch of each screen:
+ *
+ * adb shell am instrument -w -r [-e fragments wifi,battery] [-e iterations 10] \
+ *     [-e output <path>] com.android.settings.tests/.SettingsFragmentLaunchPerformance
+ *
+ * The results are reported as instrumentation results, and written as JSON with the build
+ * fingerprint into the output file so that they can be compared between builds.
+ */
+public class SettingsFragmentLaunchPerformance extends Instrumentation {
+
+    private static final String LOG_TAG = "SettingsFragmentLaunchPerformance";
+
+    private static final String ARGUMENT_FRAGMENTS = "fragments";
+    private static final String ARGUMENT_ITERATIONS = "iterations";
+    private static final String ARGUMENT_OUTPUT = "output";
+    private static final String OUTPUT_FILE_NAME = "launch_performance.json";
+
+    private static final int DEFAULT_ITERATIONS = 10;
+
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+
+    // Names of the screens, and the activities showing them
+    private static final String[][] SCREENS = {
+            { "wifi", "com.android.settings.Settings$WifiSettingsActivity" },
+            { "bluetooth", "com.android.settings.Settings$BluetoothSettingsActivity" },
+            { "apps", "com.android.settings.Settings$ManageApplicationsActivity" },
+            { "battery", "com.android.settings.Settings$PowerUsageSummaryActivity" },
+            { "data_usage", "com.android.settings.Settings$DataUsageSummaryActivity" },
+            { "storage", "com.android.settings.Settings$StorageSettingsActivity" },
+    };
+
+    private List<String> mScreens;
+    private int mIterations;
+    private File mOutput;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+
+        if (arguments == null) {
+            arguments = new Bundle();
+        }
+
+        final String screens = arguments.getString(ARGUMENT_FRAGMENTS);
+        mScreens = new ArrayList<String>();
+        for (String[] screen : SCREENS) {
+            if (screens == null || Arrays.asList(screens.split(",")).contains(screen[0])) {
+                mScreens.add(screen[0]);
+            }
+        }
+
+        final String iterations = arguments.getString(ARGUMENT_ITERATIONS);
+        mIterations = TextUtils.isEmpty(iterations) ? DEFAULT_ITERATIONS
+                : Integer.parseInt(iterations);
+
+        final String output = arguments.getString(ARGUMENT_OUTPUT);
+        mOutput = (output != null) ? new File(output)
+                : new File(getTargetContext().getFilesDir(), OUTPUT_FILE_NAME);
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        final Bundle results = new Bundle();
+        final JSONObject report = new JSONObject();
+        try {
+            report.put("build", Build.FINGERPRINT);
+            report.put("iterations", mIterations);
+
+            final JSONObject launches = new JSONObject();
+            for (String screen : mScreens) {
+                launches.put(screen, measureScreen(screen, results));
+            }
+            report.put("launches", launches);
+
+            final JSONObject sections = new JSONObject();
+            for (String section : StartupTrace.getSections()) {
+                sections.put(section, reportSection(section, results));
+            }
+            report.put("sections", sections);
+        } catch (JSONException e) {
+            // Only thrown for invalid numbers, which durations are not
+            throw new RuntimeException(e);
+        }
+
+        writeReport(report);
+        results.putString(Instrumentation.REPORT_KEY_STREAMRESULT, report.toString() + "\n");
+        finish(Activity.RESULT_OK, results);
+    }
+
+    private JSONObject measureScreen(String screen, Bundle results) throws JSONException {
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(getTargetContext(), getActivityName(screen));
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        final long cold = launch(intent);
+        final long[] warm = new long[mIterations];
+        for (int n = 0; n < mIterations; n++) {
+            warm[n] = launch(intent);
+        }
+        Log.i(LOG_TAG, screen + ": cold " + cold + " ms, warm " + Arrays.toString(warm) + " ms");
+
+        final JSONObject result = new JSONObject();
+        result.put("cold_ms", cold);
+        results.putLong(screen + "_cold_ms", cold);
+
+        final JSONArray warmArray = new JSONArray();
+        for (long duration : warm) {
+            warmArray.put(duration);
+        }
+        result.put("warm_ms", warmArray);
+        if (mIterations > 0) {
+            Arrays.sort(warm);
+            for (int percentile : PERCENTILES) {
+                final long value = getPercentile(warm, percentile);
+                result.put("warm_p" + percentile + "_ms", value);
+                results.putLong(screen + "_warm_p" + percentile + "_ms", value);
+            }
+        }
+        return result;
+    }
+
+    private JSONObject reportSection(String section, Bundle results) throws JSONException {
+        final JSONObject result = new JSONObject();
+        final int count = StartupTrace.getCount(section);
+        result.put("count", count);
+        results.putInt(section + "_count", count);
+        for (int percentile : PERCENTILES) {
+            // Reported in microseconds, most sections are below one millisecond when warm
+            final long value = StartupTrace.getPercentile(section, percentile) / 1000;
+            result.put("p" + percentile + "_us", value);
+            results.putLong(section + "_p" + percentile + "_us", value);
+        }
+        return result;
+    }
+
+    /**
+     * Launch an activity and wait for it to be idle.
+     *
+     * @return the time to launch the activity in milliseconds.
+     */
+    private long launch(Intent intent) {
+        final long start = SystemClock.uptimeMillis();
+        final Activity activity = startActivitySync(intent);
+        waitForIdleSync();
+        final long duration = SystemClock.uptimeMillis() - start;
+
+        activity.finish();
+        waitForIdleSync();
+        return duration;
+    }
+
+    private void writeReport(JSONObject report) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mOutput);
+            out.write(report.toString().getBytes("UTF-8"));
+            Log.i(LOG_TAG, "Report written to " + mOutput);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot write the report to " + mOutput, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static String getActivityName(String screen) {
+        for (String[] entry : SCREENS) {
+            if (entry[0].equals(screen)) {
+                return entry[1];
+            }
+        }
+        throw new IllegalArgumentException("Unknown screen: " + screen);
+    }
+
+    private static long getPercentile(long[] sortedValues, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, index))];
+    }
+}